@@ -0,0 +1,80 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Block checksums for delta transfers, as in rsync: a weak one that can be
+// rolled along a byte at a time, and a strong one (the first 8 bytes of MD5)
+// for when the weak one matches.
+class BlockChecksum {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int MIN_BLOCK_SIZE = 1024;
+    private final static int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private MessageDigest _md5;
+    private byte[] _digest;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public BlockChecksum() {
+        try {
+            _md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            System.out.println(e.toString());
+        }
+        _digest = new byte[16];
+    }
+
+    // About the square root of the file size, which keeps the signatures
+    // and the bytes resent around a change both small.
+    public static int getBlockSize(long fileSize) {
+        long blockSize = (long)Math.sqrt(fileSize) & ~7L;
+
+        return (int)Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    // The sums a and b of rsync, 16 bits each, as (b << 16) | a. Carry on
+    // from one position to the next with roll().
+    public static int weak(byte[] data, int offset, int length) {
+        int a = 0, b = 0;
+
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+
+        return (b << 16) | (a & 0xFFFF);
+    }
+
+    // The weak checksum of the block one byte further on, given the byte
+    // that drops out and the one that comes in.
+    public static int roll(int weak, int length, int out, int in) {
+        int a = (weak - out + in) & 0xFFFF;
+        int b = ((weak >>> 16) - length * out + a) & 0xFFFF;
+
+        return (b << 16) | a;
+    }
+
+    public long strong(byte[] data, int offset, int length) {
+        _md5.update(data, offset, length);
+
+        try {
+            _md5.digest(_digest, 0, _digest.length);
+        } catch (DigestException e) {
+            System.out.println(e.toString());
+        }
+
+        return ByteBuffer.wrap(_digest).getLong();
+    }
+}
@@ -2,38 +2,1761 @@
 
 import java.net.*;
 import java.io.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 
+// Checkpoint of how far a transfer has got, kept next to the file it goes
+// into, so that an interrupted transfer can carry on from there. It holds the
+// last packet received in order and a bitmap of the packets received past
+// it, which the receive window keeps small. It is only written after the
+// file has been forced to disk, so it never claims more than the file holds.
+// After that come the hashes of the chunks received in order, as far as the
+// StreamDigest had got, so that it can carry on without reading them back.
+class TransferJournal {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int MAGIC = 0x4A524E32;    // "JRN2"
+    private final static int HEADER_LENGTH = 4 + 8 + 8 + 8 + 4 + 8 + 8 + 4;
+    private final static long HASHES_OFFSET = HEADER_LENGTH + (Packet.SACK_MAX_BITS + 7) / 8;
+    private final static int RESTORE_BUFFER_SIZE = 2048 * StreamDigest.DIGEST_LENGTH;
+
+    private Path _path;
+    private FileChannel _channel;
+    private ByteBuffer _buffer;
+
+// What the journal is for. An earlier journal only counts if all match.
+    private long _totalFileSize;
+    private long _rangeOffset;
+    private long _rangeSize;
+    private int _chunkSize;
+
+// Progress
+    private long _seqNo;
+    private boolean[] _received;                    // _seqNo + 1 + i was received.
+    private long _hashedChunks;                     // Chunk hashes saved.
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public TransferJournal(String fileName, long totalFileSize, long rangeOffset,
+                           long rangeSize, int chunkSize, int windowSize) {
+
+        // Parallel streams each keep their own.
+        boolean wholeFile = rangeOffset == 0 && rangeSize == totalFileSize;
+        _path = Paths.get(wholeFile ? fileName + ".journal"
+                                    : fileName + "." + rangeOffset + ".journal");
+        _channel = null;
+        _buffer = ByteBuffer.allocate(HEADER_LENGTH + (windowSize + 7) / 8);
+
+        _totalFileSize = totalFileSize;
+        _rangeOffset = rangeOffset;
+        _rangeSize = rangeSize;
+        _chunkSize = chunkSize;
+
+        _seqNo = 0;
+        _received = new boolean[windowSize];
+        _hashedChunks = 0;
+    }
+
+    // Reads what an earlier attempt at the same transfer left behind.
+    // Returns false if there is nothing, or it was for something else.
+    public boolean load() {
+
+        if (!Files.exists(_path))
+            return false;
+
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ)) {
+            ByteBuffer bf = ByteBuffer.allocate((int)Math.min(channel.size(), _buffer.capacity()));
+
+            while (bf.hasRemaining() && channel.read(bf) >= 0);
+            bf.flip();
+
+            if (bf.getInt() != MAGIC || bf.getLong() != _totalFileSize
+                    || bf.getLong() != _rangeOffset || bf.getLong() != _rangeSize
+                    || bf.getInt() != _chunkSize)
+                return false;
+
+            _seqNo = Math.max(0, bf.getLong());
+            _hashedChunks = Math.max(0, Math.min(bf.getLong(), (channel.size() - HASHES_OFFSET)
+                                                               / StreamDigest.DIGEST_LENGTH));
+            int bits = Math.min(bf.getInt(), _received.length);
+
+            for (int i = 0; i < bits; i++)
+                _received[i] = (bf.get(bf.position() + i / 8) & (1 << (i % 8))) != 0;
+        } catch (IOException | RuntimeException e) {
+            System.out.println(e.toString());
+            return false;
+        }
+
+        return true;
+    }
+
+    // Gives digest the hashes of the first count chunks, as far as they were
+    // saved. Returns how many it got.
+    public long restoreDigest(StreamDigest digest, long count) {
+
+        count = Math.min(count, _hashedChunks);
+
+        ByteBuffer bf = ByteBuffer.allocate(RESTORE_BUFFER_SIZE);
+        long chunk = 0;
+
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ)) {
+            while (chunk < count) {
+                bf.clear();
+                bf.limit((int)Math.min(bf.capacity(), (count - chunk) * StreamDigest.DIGEST_LENGTH));
+
+                long position = HASHES_OFFSET + chunk * StreamDigest.DIGEST_LENGTH;
+
+                while (bf.hasRemaining()) {
+                    if (channel.read(bf, position + bf.position()) < 0)
+                        throw new EOFException("Chunk " + chunk + " is not in the journal");
+                }
+
+                for (int offset = 0; offset < bf.limit(); offset += StreamDigest.DIGEST_LENGTH) {
+                    long length = Math.min(_chunkSize, _rangeSize - chunk * _chunkSize);
+
+                    digest.addChunkHash(bf.array(), offset, (int)length);
+                    chunk++;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        return chunk;
+    }
+
+    // Records that everything up to seqNo was received, and of the packets
+    // after it, those in ring (by seqNo % ring.length), along with the hashes
+    // that digest has finished since.
+    public void save(long seqNo, boolean[] ring, StreamDigest digest) throws IOException {
+
+        if (_channel == null)
+            _channel = FileChannel.open(_path, StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE);
+
+        // The hashes go first, so that the header never claims more of them
+        // than there are.
+        ByteBuffer hashes = digest.getFinishedHashes();
+
+        if (hashes.hasRemaining()) {
+            long position = HASHES_OFFSET
+                            + digest.getFirstFinishedChunk() * StreamDigest.DIGEST_LENGTH;
+
+            while (hashes.hasRemaining())
+                _channel.write(hashes, position + hashes.position());
+
+            _channel.force(false);
+            _hashedChunks = digest.getFirstFinishedChunk()
+                            + hashes.limit() / StreamDigest.DIGEST_LENGTH;
+            digest.clearFinishedHashes();
+        }
+
+        int bits = Math.min(ring.length, _received.length);
+
+        ByteBuffer bf = _buffer;
+        bf.clear();
+        bf.putInt(MAGIC);
+        bf.putLong(_totalFileSize);
+        bf.putLong(_rangeOffset);
+        bf.putLong(_rangeSize);
+        bf.putInt(_chunkSize);
+        bf.putLong(seqNo);
+        bf.putLong(_hashedChunks);
+        bf.putInt(bits);
+
+        for (int i = 0; i < bits; i += 8) {
+            int b = 0;
+
+            for (int j = i; j < Math.min(i + 8, bits); j++) {
+                if (ring[(int)((seqNo + 1 + j) % ring.length)])
+                    b |= 1 << (j - i);
+            }
+            bf.put((byte)b);
+        }
+        bf.flip();
+
+        while (bf.hasRemaining())
+            _channel.write(bf, bf.position());
+
+        _channel.force(false);
+    }
+
+    // The transfer is complete, nothing to carry on from.
+    public void delete() {
+        try {
+            close();
+            Files.deleteIfExists(_path);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    public void close() throws IOException {
+        if (_channel != null)
+            _channel.close();
+        _channel = null;
+    }
+
+    public long getSeqNo() {
+        return _seqNo;
+    }
+
+    public boolean isReceived(long seqNo) {
+        long index = seqNo - _seqNo - 1;
+
+        return index >= 0 && index < _received.length && _received[(int)index];
+    }
+};
+
+// What has arrived of one block of payload packets, for forward error
+// correction: the XOR of their payloads, and of the block's parity packet once
+// that is in too. With all but one of the block in, that XOR is the missing
+// payload.
+class ParityBlock {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private long _firstSeqNo;
+    private int _blockLength;       // From the parity packet, 0 until then.
+    private long _arrived;          // Bit i: _firstSeqNo + i is in.
+    private int _arrivedCount;
+    private boolean _rebuilt;
+
+    private byte _type;
+    private int _length;
+    private byte[] _data;
+    private int _dataLength;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public ParityBlock(int maxDataLength) {
+        _data = new byte[maxDataLength];
+        reset(-1);
+    }
+
+    public void reset(long firstSeqNo) {
+
+        _firstSeqNo = firstSeqNo;
+        _blockLength = 0;
+        _arrived = 0;
+        _arrivedCount = 0;
+        _rebuilt = false;
+
+        _type = 0;
+        _length = 0;
+        Arrays.fill(_data, 0, _dataLength, (byte)0);
+        _dataLength = 0;
+    }
+
+    public long getFirstSeqNo() {
+        return _firstSeqNo;
+    }
+
+    public void addPayload(Packet pkt) {
+
+        long bit = 1L << (pkt.getSeqNo() - _firstSeqNo);
+
+        if ((_arrived & bit) != 0)
+            return;
+
+        _arrived |= bit;
+        _arrivedCount++;
+
+        _type ^= (byte)(pkt.getPacketType() / 100);
+        _length ^= (int)pkt.getPayloadDataSize();
+        add(pkt);
+    }
+
+    public void addParity(Packet pkt) {
+
+        if (_blockLength > 0)
+            return;
+
+        _blockLength = Math.max(1, Math.min(pkt.getBlockLength(), Packet.MAX_FEC_BLOCK_SIZE));
+
+        _type ^= pkt.getParityType();
+        _length ^= pkt.getParityLength() & 0xFFFF;
+        add(pkt);
+    }
+
+    public boolean canRebuild() {
+        return !_rebuilt && _blockLength > 0 && _arrivedCount == _blockLength - 1;
+    }
+
+    // Turns pkt into the missing payload packet.
+    public void rebuild(Packet pkt) {
+
+        int index = Long.numberOfTrailingZeros(~_arrived);
+        int length = Math.max(0, Math.min(_length, _dataLength));
+
+        _rebuilt = true;
+
+        pkt.setPacketType((short)((_type & 0xFF) * 100));
+        pkt.setSeqNo(_firstSeqNo + index);
+        pkt.setPayloadDataSize(length);
+        System.arraycopy(_data, 0, pkt.getData(), pkt.getPayloadOffset(), length);
+    }
+
+    private void add(Packet pkt) {
+
+        byte[] data = pkt.getData();
+        int offset = pkt.getPayloadOffset();
+        int length = (int)Math.min(pkt.getPayloadDataSize(), _data.length);
+
+        for (int i = 0; i < length; i++)
+            _data[i] ^= data[offset + i];
+
+        _dataLength = Math.max(_dataLength, length);
+    }
+};
+
+// Signatures of the blocks of a delta transfer's basis. They are worked out
+// once, on a thread of their own so that a large basis does not hold up the
+// other sessions, and kept for as long as the transfer needs them. Each time
+// another page of them is ready, the session is put on the receiver's queue
+// and the receiver is woken up to send whatever was asked for.
+class BasisSigner implements Runnable {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private FileChannel _basisChannel;
+    private int _blockSize;
+    private int _pageSize;                          // Blocks per signature packet.
+    private int[] _weak;
+    private long[] _strong;
+
+    private volatile long _blockCount;              // Fewer if the basis cannot be read.
+    private volatile long _signedBlocks;
+    private volatile boolean _stopped;
+
+    private ReceiverSession _session;
+    private Queue<ReceiverSession> _readySessions;
+    private Selector _selector;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public BasisSigner(FileChannel basisChannel, long basisSize, int blockSize, int pageSize,
+                       ReceiverSession session, Queue<ReceiverSession> readySessions,
+                       Selector selector) {
+
+        _basisChannel = basisChannel;
+        _blockSize = blockSize;
+        _pageSize = pageSize;
+        _blockCount = basisSize / blockSize;
+        _weak = new int[(int)_blockCount];
+        _strong = new long[(int)_blockCount];
+        _signedBlocks = 0;
+        _stopped = false;
+
+        _session = session;
+        _readySessions = readySessions;
+        _selector = selector;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "Signer " + _session.getSessionId());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The basis is closed once the session is done with it, which ends the
+    // thread if it is still reading.
+    public void stop() {
+        _stopped = true;
+    }
+
+    public long getBlockCount() {
+        return _blockCount;
+    }
+
+    // True once the signatures of every block before endBlock are in.
+    public boolean isSigned(long endBlock) {
+        long signedBlocks = _signedBlocks;
+
+        return signedBlocks >= Math.min(endBlock, _blockCount);
+    }
+
+    public int getWeak(long block) {
+        return _weak[(int)block];
+    }
+
+    public long getStrong(long block) {
+        return _strong[(int)block];
+    }
+
+    public void run() {
+
+        ByteBuffer bf = ByteBuffer.allocate(_blockSize);
+        BlockChecksum blockChecksum = new BlockChecksum();
+        long block = 0;
+
+        try {
+            for (; block < _blockCount && !_stopped; block++) {
+                long position = block * _blockSize;
+                bf.clear();
+
+                while (bf.hasRemaining()) {
+                    if (_basisChannel.read(bf, position + bf.position()) < 0)
+                        throw new EOFException("Block " + block + " is not in the basis");
+                }
+
+                byte[] data = bf.array();
+                _weak[(int)block] = BlockChecksum.weak(data, 0, _blockSize);
+                _strong[(int)block] = blockChecksum.strong(data, 0, _blockSize);
+
+                if ((block + 1) % _pageSize == 0 || block + 1 == _blockCount) {
+                    _signedBlocks = block + 1;
+                    notifySession();
+                }
+            }
+        } catch (IOException e) {
+            if (_stopped)
+                return;
+
+            // The pages asked for are still answered, with what there is.
+            System.out.println(e.toString());
+            _blockCount = block;
+            _signedBlocks = block;
+            notifySession();
+        }
+    }
+
+    private void notifySession() {
+        _readySessions.add(_session);
+        _selector.wakeup();
+    }
+};
+
+// One transfer into the receiver, told apart from the others by the session
+// ID its sender puts in every packet (or by its address, for version 1).
+class ReceiverSession {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+// Session stuff.
+    private long _sessionKey;       // See Receiver.sessionKey().
+    private int _sessionId;
+    private long _lastActiveTime;   // Milliseconds, see Receiver.currentTime().
+
+// Channel stuff, shared with the other sessions.
+    private DatagramChannel _channel;
+
+// File stuff.
+    private FileChannel _fileChannel;
+
+    private long _totalFileSize;
+    private long _currFileSize;
+    private long _seqNo;            // Last sequence number delivered in order.
+    private String _fileName;
+    private long _rangeOffset;      // Where the sender's part of the file starts.
+
+    private boolean _started;       // The file or batch header has arrived.
+    private boolean _done;
+
+// Checkpoints, so that an interrupted transfer can be resumed. Batches are
+// not journalled.
+    private final static long CHECKPOINT_INTERVAL = 1000;
+
+    private TransferJournal _journal;
+    private long _lastCheckpointTime;
+
+// Batch stuff. A batch is written into a directory, one file per manifest
+// entry, with the payloads split between the files they cover.
+    private boolean _batch;
+    private Path _root;
+    private String[] _entryNames;
+    private long[] _entrySizes;
+    private long[] _entryOffsets;                   // Where each file starts in the stream.
+    private long[] _entryRemaining;                 // Bytes still to be written.
+    private FileChannel[] _entryChannels;           // While being written.
+
+    private int _manifestPkts;
+    private int _manifestReceived;
+    private long _dataStartSeqNo;                   // Sequence number of the first payload.
+
+// Compressed and delta transfers: each payload carries on from where the one
+// before it ended, so they are placed in sequence. Compressed payloads are
+// inflated on the way.
+    private final static int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private boolean _sequential;
+    private boolean _compressed;
+    private long _placedSeqNo;                      // Last sequence number placed.
+    private long _streamPosition;                   // Where the next payload goes.
+    private Inflater _inflater;
+    private ByteBuffer _inflateBuffer;
+
+// Delta transfers: the payloads are commands to build the file from the copy
+// that is already here, the basis, into a new file that takes its place once
+// it is done.
+    private boolean _delta;
+    private FileChannel _basisChannel;
+    private long _basisSize;
+    private int _blockSize;
+    private ByteBuffer _blockBuffer;
+    private Path _deltaPath;                        // The new file.
+    private BasisSigner _signer;
+    private Packet _signaturePkt;
+    private ArrayList<Long> _pendingPages;          // Asked for before they were signed.
+
+// Forward error correction: one block for each that the window can reach,
+// by block number % _parityBlocks.length.
+    private int _fecBlockSize;
+    private ParityBlock[] _parityBlocks;
+
+    private int _chunkSize;                         // Payload size of all but the last.
+
+// End-to-end check, see StreamDigest.
+    private StreamDigest _digest;
+    private boolean _checkDigest;                   // The sender sends its digest.
+    private long _streamSize;                       // Bytes the sender sends.
+    private boolean _verified;                      // Nothing found wrong.
+
+// Sliding window
+    private int _windowSize;
+    private boolean[] _received;                    // By seqNo % _windowSize, beyond _seqNo.
+    private int _outOfOrderCount;
+    private HashMap<Long, Packet> _earlyPkts;       // Arrived before they could be placed.
+    private ArrayList<Packet> _placedPkts;          // Placed since, see handlePacket().
+
+// Packets. The pool is shared with the other sessions, the response is
+// reused for the whole transfer.
+    private PacketPool _pktPool;
+    private TransferMetrics _metrics;
+    private SendTask _responseTask;
+    private Packet _duplicatePkt;                   // Tells the sender it resent for nothing.
+
+// Timer, shared with the other sessions.
+    private final static long RESEND_INTERVAL = 50;
+
+    private TimerWheel _sendTimer;
+    private SendTask _sendTask;                     // _responseTask, while active.
+
+// Delayed ACK: in order packets are acknowledged in pairs, or after a short
+// delay, unless something is out of order.
+    private final static int ACK_FREQUENCY = 2;
+    private final static long ACK_DELAY = 2;
+
+    private int _unackedPkts;
+
+// Where a BasisSigner reports to, shared with the other sessions.
+    private Queue<ReceiverSession> _signedSessions;
+    private Selector _selector;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public ReceiverSession(long sessionKey, int sessionId, DatagramChannel channel,
+                           TimerWheel sendTimer, PacketPool pktPool, TransferMetrics metrics,
+                           int windowSize, Queue<ReceiverSession> signedSessions,
+                           Selector selector) {
+
+        _sessionKey = sessionKey;
+        _sessionId = sessionId;
+        _lastActiveTime = Receiver.currentTime();
+
+        _channel = channel;
+
+        _fileChannel = null;
+
+        _totalFileSize = 0;
+        _currFileSize = 0;
+        _seqNo = -1;
+        _fileName = "";
+        _rangeOffset = 0;
+
+        _started = false;
+        _done = false;
+
+        _journal = null;
+        _lastCheckpointTime = _lastActiveTime;
+
+        _batch = false;
+        _root = null;
+        _manifestPkts = 0;
+        _manifestReceived = 0;
+        _dataStartSeqNo = 1;
+
+        _sequential = false;
+        _compressed = false;
+        _placedSeqNo = -1;
+        _streamPosition = 0;
+        _inflater = null;
+        _inflateBuffer = null;
+
+        _delta = false;
+        _basisChannel = null;
+        _basisSize = 0;
+        _blockSize = 0;
+        _blockBuffer = null;
+        _deltaPath = null;
+        _signer = null;
+        _signaturePkt = null;
+        _pendingPages = null;
+
+        _fecBlockSize = 0;
+        _parityBlocks = null;
+
+        _chunkSize = 0;
+
+        _digest = null;
+        _checkDigest = false;
+        _streamSize = 0;
+        _verified = true;
+
+        _windowSize = Math.min(windowSize, Packet.SACK_MAX_BITS);
+        _received = new boolean[_windowSize];
+        _outOfOrderCount = 0;
+        _earlyPkts = new HashMap<Long, Packet>();
+        _placedPkts = new ArrayList<Packet>();
+
+        _pktPool = pktPool;
+        _metrics = metrics;
+        _responseTask = new SendTask(_channel, new Packet(), RESEND_INTERVAL, null);
+        _responseTask.getPacket().setSessionId(sessionId);
+        _duplicatePkt = new Packet();
+        _duplicatePkt.setSessionId(sessionId);
+
+        _sendTimer = sendTimer;
+        _sendTask = null;
+        _unackedPkts = 0;
+
+        _signedSessions = signedSessions;
+        _selector = selector;
+    }
+
+    // Handles a verified packet of this session, and answers it. Returns true
+    // if the session holds on to the packet, which must not be reused then.
+    public boolean handlePacket(Packet rcvPkt) {
+
+        _lastActiveTime = Receiver.currentTime();
+        stopSendPacket();
+
+        // Answer in the version of the packet, to wherever it came from.
+        Packet sendPkt = _responseTask.getPacket();
+        sendPkt.reset();
+        sendPkt.setVersion(rcvPkt.getVersion());
+        sendPkt.setSocketAddress(rcvPkt.getSocketAddress());
+
+        boolean inOrder = parsePacket(rcvPkt);
+
+        if (_journal != null && !_done && _lastActiveTime - _lastCheckpointTime >= CHECKPOINT_INTERVAL)
+            checkpoint();
+
+        _metrics.setWindow(_outOfOrderCount, _windowSize);
+
+        if (_done) {
+            sendResponsePacket(sendPkt, _verified ? Packet.MSG_ACK : Packet.MSG_NAK);
+        } else if (inOrder && ++_unackedPkts < ACK_FREQUENCY) {
+            makeSackPacket(sendPkt);
+            startSendPacket(sendPkt, ACK_DELAY);
+        } else {
+            _unackedPkts = 0;
+            makeSackPacket(sendPkt);
+            startSendPacket(sendPkt, 0);
+        }
+
+        // Packets that came too early are held on to until they can be placed.
+        // Those placed now are given back, except the one being handled, which
+        // a rebuilt payload may have placed already, and is the caller's.
+        boolean held = _earlyPkts.get(rcvPkt.getSeqNo()) == rcvPkt;
+
+        for (Packet placedPkt : _placedPkts) {
+            if (placedPkt != rcvPkt)
+                _pktPool.release(placedPkt);
+        }
+        _placedPkts.clear();
+
+        return held;
+    }
+
+    // Gives back everything the session holds.
+    public void close() {
+
+        stopSendPacket();
+
+        // The journal is left as of the last checkpoint. Writing it now could
+        // undo the progress of a newer session resuming the same file.
+        if (_journal != null) {
+            try {
+                _journal.close();
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        for (Packet earlyPkt : _earlyPkts.values())
+            _pktPool.release(earlyPkt);
+        _earlyPkts.clear();
+
+        closeFile();
+
+        if (_inflater != null)
+            _inflater.end();
+        _inflater = null;
+
+        // Half a file is no use.
+        if (_delta && !_done) {
+            closeBasis();
+
+            try {
+                Files.deleteIfExists(_deltaPath);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+    }
+
+    public long getSessionKey() {
+        return _sessionKey;
+    }
+
+    public int getSessionId() {
+        return _sessionId;
+    }
+
+    public long getLastActiveTime() {
+        return _lastActiveTime;
+    }
+
+    public boolean isDone() {
+        return _done;
+    }
+
+    // Whether the digest, if the sender sent one, matched.
+    public boolean isVerified() {
+        return _verified;
+    }
+
+    // Cumulative ACK for everything delivered so far, plus a bitmap of the
+    // packets buffered beyond it.
+    private void makeSackPacket(Packet pkt) {
+
+        pkt.setPacketType(Packet.SACK_PACKET_TYPE);
+        pkt.setSeqNo(_seqNo);
+
+        int count = 0;
+
+        for (long seqNo = _seqNo + 1; count < _outOfOrderCount; seqNo++) {
+            if (_received[slot(seqNo)]) {
+                pkt.setAcked(seqNo);
+                count++;
+            }
+        }
+    }
+
+    // Sends the packet after delay (now if 0), and keeps resending it until
+    // it is stopped.
+    private void startSendPacket(Packet pkt, long delay) {
+        _sendTask = _responseTask;
+        _sendTask.reset(RESEND_INTERVAL);
+
+        if (delay == 0) {
+            _sendTask.send();
+            delay = RESEND_INTERVAL;
+        }
+
+        _sendTimer.schedule(_sendTask, delay);
+    }
+
+    private void stopSendPacket() {
+        if (_sendTask == null)
+            return;
+
+        // A delayed ACK that already went out covered the pending packets.
+        if (_sendTask.getSendCount() > 0)
+            _unackedPkts = 0;
+
+        _sendTimer.cancel(_sendTask);
+        _sendTask = null;
+    }
+
+    // Returns true if the packet was the next one in order and nothing else
+    // is waiting behind a gap, so its ACK can be held back.
+    private boolean parsePacket(Packet pkt) {
+        //System.out.println("rcvPkt.getSeqNo()="+pkt.getSeqNo());
+        long seqNo = pkt.getSeqNo();
+
+        // The sender only terminates once everything has been acknowledged.
+        // Whatever comes after that is a retransmission.
+        if (_done)
+            return false;
+
+        if (seqNo == Packet.TERMINATION_SEQUENCE_NO) {
+            _done = true;
+            _verified = verifyDigest(pkt);
+            finishJournal();
+            closeFile();
+            if (_delta)
+                finishDelta();
+            return false;
+        }
+
+        if (pkt.getPacketType() == Packet.SIGNATURE_REQUEST_PACKET_TYPE) {
+            sendSignaturePacket(pkt);
+            return _outOfOrderCount == 0;
+        }
+
+        if (pkt.getPacketType() == Packet.FEC_PARITY_PACKET_TYPE)
+            return addParity(pkt);
+
+        // Beyond our window, let the sender retransmit it later. Duplicates
+        // are acknowledged again in case our last response was lost, and
+        // reported, so that the sender can take back its loss response.
+        if (seqNo <= _seqNo || seqNo > _seqNo + _windowSize || _received[slot(seqNo)]) {
+            if (seqNo <= _seqNo + _windowSize) {
+                _metrics.addDuplicate();
+                sendDuplicatePacket(pkt);
+            }
+            return false;
+        }
+
+        _received[slot(seqNo)] = true;
+        _outOfOrderCount++;
+
+        if (_parityBlocks != null)
+            addPayload(pkt);
+
+        // Payloads go straight to their place in the file, whatever the order.
+        // Only those that beat what they depend on have to wait for it.
+        if (canPlace(pkt)) {
+            placePacket(pkt);
+
+            if ((_sequential || pkt.getPacketType() != Packet.PAYLOAD_PACKET_TYPE)
+                    && !_earlyPkts.isEmpty())
+                placeEarlyPackets();
+        } else {
+            _earlyPkts.put(seqNo, pkt);
+        }
+
+        while (_outOfOrderCount > 0 && _received[slot(_seqNo + 1)]) {
+            _received[slot(_seqNo + 1)] = false;
+            _outOfOrderCount--;
+            _seqNo++;
+        }
+
+        if (_parityBlocks != null)
+            rebuild(pkt.getSeqNo());
+
+        return _outOfOrderCount == 0;
+    }
+
+    // Sets up forward error correction once the header says how large the
+    // blocks are. Payloads that came before it are still waiting to be
+    // placed, so they can be counted now.
+    private void startFec(Packet pkt) {
+
+        _fecBlockSize = Math.max(0, Math.min(pkt.getFecBlockSize(), Packet.MAX_FEC_BLOCK_SIZE));
+        _chunkSize = (_fecBlockSize > 0) ? pkt.getMaxProtectedDataSize() : pkt.getMaxPayloadDataSize();
+
+        if (_fecBlockSize == 0)
+            return;
+
+        _parityBlocks = new ParityBlock[_windowSize / _fecBlockSize + 2];
+
+        for (int i = 0; i < _parityBlocks.length; i++)
+            _parityBlocks[i] = new ParityBlock(pkt.getMaxParityDataSize());
+
+        for (Packet earlyPkt : _earlyPkts.values())
+            addPayload(earlyPkt);
+    }
+
+    // Returns the block a sequence number belongs to, emptied first if it
+    // was last used for an older block.
+    private ParityBlock getParityBlock(long seqNo) {
+
+        long block = (seqNo - _dataStartSeqNo) / _fecBlockSize;
+        long firstSeqNo = _dataStartSeqNo + block * _fecBlockSize;
+        ParityBlock parityBlock = _parityBlocks[(int)(block % _parityBlocks.length)];
+
+        if (parityBlock.getFirstSeqNo() != firstSeqNo)
+            parityBlock.reset(firstSeqNo);
+
+        return parityBlock;
+    }
+
+    private void addPayload(Packet pkt) {
+
+        short type = pkt.getPacketType();
+
+        if (pkt.getSeqNo() >= _dataStartSeqNo && (type == Packet.PAYLOAD_PACKET_TYPE
+                                                  || type == Packet.COMPRESSED_PAYLOAD_PACKET_TYPE))
+            getParityBlock(pkt.getSeqNo()).addPayload(pkt);
+    }
+
+    // Parity for a block that is already all in, or for a header we have
+    // not seen yet, is of no use.
+    private boolean addParity(Packet pkt) {
+
+        long seqNo = pkt.getSeqNo();
+
+        if (_parityBlocks != null && seqNo >= _dataStartSeqNo
+                && seqNo + pkt.getBlockLength() - 1 > _seqNo && seqNo <= _seqNo + _windowSize) {
+            getParityBlock(seqNo).addParity(pkt);
+            rebuild(seqNo);
+        }
+
+        return _outOfOrderCount == 0;
+    }
+
+    // Puts the one missing payload of a block through, as if it had arrived.
+    private void rebuild(long seqNo) {
+
+        if (seqNo < _dataStartSeqNo)
+            return;
+
+        ParityBlock parityBlock = getParityBlock(seqNo);
+
+        if (!parityBlock.canRebuild())
+            return;
+
+        Packet pkt = _pktPool.acquire();
+        pkt.setVersion(_responseTask.getPacket().getVersion());
+        parityBlock.rebuild(pkt);
+
+        parsePacket(pkt);
+
+        if (_earlyPkts.get(pkt.getSeqNo()) != pkt)
+            _placedPkts.add(pkt);
+    }
+
+    // Everything needs the file or batch header first, and batch payloads
+    // also need the whole manifest, to know which files they go to.
+    // Compressed transfers place everything in sequence.
+    private boolean canPlace(Packet pkt) {
+
+        if (pkt.getSeqNo() == 0)
+            return true;
+
+        if (!_started)
+            return false;
+
+        if (_sequential)
+            return pkt.getSeqNo() == _placedSeqNo + 1;
+
+        return pkt.getSeqNo() < _dataStartSeqNo || _manifestReceived == _manifestPkts;
+    }
+
+    private void placePacket(Packet pkt) {
+
+        _placedSeqNo = pkt.getSeqNo();
+
+        if (pkt.getSeqNo() == 0) {
+            if (pkt.getPacketType() == Packet.BATCH_HEADER_PACKET_TYPE)
+                createBatch(pkt);
+            else
+                createFile(pkt);
+            //System.out.println("createFile");
+        } else if (pkt.getPacketType() == Packet.MANIFEST_PACKET_TYPE) {
+            addManifest(pkt);
+        } else {
+            updateFile(pkt);
+            //System.out.println("updateFile");
+        }
+    }
+
+    // Places whatever was waiting, for as long as that lets more be placed.
+    private void placeEarlyPackets() {
+
+        // Only the next one in sequence can be placed.
+        if (_sequential) {
+            Packet earlyPkt;
+
+            while ((earlyPkt = _earlyPkts.remove(_placedSeqNo + 1)) != null) {
+                placePacket(earlyPkt);
+                _placedPkts.add(earlyPkt);
+            }
+            return;
+        }
+
+        boolean placed = true;
+
+        while (placed) {
+            placed = false;
+
+            Iterator<Packet> it = _earlyPkts.values().iterator();
+
+            while (it.hasNext()) {
+                Packet earlyPkt = it.next();
+
+                if (canPlace(earlyPkt)) {
+                    placePacket(earlyPkt);
+                    _placedPkts.add(earlyPkt);
+                    it.remove();
+                    placed = true;
+                }
+            }
+        }
+    }
+
+    private int slot(long seqNo) {
+        return (int)(seqNo % _windowSize);
+    }
+
+    private void sendResponsePacket(Packet pkt, short response) {
+
+        pkt.setResponse(response);
+        pkt.setSeqNo(Packet.TERMINATION_SEQUENCE_NO);
+        pkt.setPacketType(Packet.RESPONSE_PACKET_TYPE);
+
+        try {
+            pkt.send(_channel);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    private void sendDuplicatePacket(Packet rcvPkt) {
+
+        Packet pkt = _duplicatePkt;
+        pkt.reset();
+        pkt.setVersion(rcvPkt.getVersion());
+        pkt.setSocketAddress(rcvPkt.getSocketAddress());
+
+        pkt.setResponse(Packet.MSG_DUPLICATE);
+        pkt.setSeqNo(rcvPkt.getSeqNo());
+        pkt.setPacketType(Packet.RESPONSE_PACKET_TYPE);
+
+        try {
+            pkt.send(_channel);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    private void createFile(Packet pkt) {
+
+        _totalFileSize = pkt.getTotalFileSize();
+        _fileName = pkt.getFileName();
+        _rangeOffset = pkt.getRangeOffset();
+        _started = true;
+
+        if ((pkt.getFlags() & Packet.FLAG_COMPRESSED) != 0)
+            startCompressed();
+
+        if ((pkt.getFlags() & Packet.FLAG_DELTA) != 0)
+            startDelta(pkt);
+
+        startFec(pkt);
+        startDigest(pkt, pkt.getRangeSize());
+
+        _journal = new TransferJournal(_fileName, _totalFileSize, _rangeOffset, pkt.getRangeSize(),
+                                       _chunkSize, _windowSize);
+
+        // Only a journal of this very transfer will do, anything else is
+        // stale once the file is written again.
+        boolean resumed = !_sequential && (pkt.getFlags() & Packet.FLAG_RESUME) != 0
+                          && _journal.load();
+
+        if (!resumed)
+            _journal.delete();
+
+        // Where these payloads go depends on every one before them, so
+        // there is no carrying on from the middle.
+        if (_sequential)
+            _journal = null;
+
+        if (_fileChannel == null) {
+            try {
+                if (_delta) {
+                    _fileChannel = FileChannel.open(_deltaPath,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING);
+                } else if (_rangeOffset == 0 && pkt.getRangeSize() == _totalFileSize && !resumed) {
+                    _fileChannel = FileChannel.open(Paths.get(_fileName),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING);
+                } else {
+                    // One of several streams writing the same file, or one
+                    // carrying on with it. Only cut off what an older, longer
+                    // file left past the end, so as not to lose what is
+                    // already there.
+                    _fileChannel = FileChannel.open(Paths.get(_fileName),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE);
+                    _fileChannel.truncate(_totalFileSize);
+                }
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        if (resumed)
+            resume();
+        else if (_journal != null)
+            _digest.keepFinishedHashes();
+    }
+
+    // Carries on from the journal. A resuming sender holds everything back
+    // until it has heard how far it can skip, so only stale packets can have
+    // arrived before the file header. The digest takes the chunk hashes the
+    // journal saved, and only what was written after those is read back.
+    private void resume() {
+
+        for (Packet earlyPkt : _earlyPkts.values())
+            _pktPool.release(earlyPkt);
+        _earlyPkts.clear();
+
+        Arrays.fill(_received, false);
+        _outOfOrderCount = 0;
+        _seqNo = _journal.getSeqNo();
+
+        long restored = _journal.restoreDigest(_digest, _seqNo - _dataStartSeqNo + 1);
+        _digest.keepFinishedHashes();
+
+        ByteBuffer chunk = ByteBuffer.allocate(_chunkSize);
+
+        for (long seqNo = _dataStartSeqNo + restored; seqNo <= _seqNo; seqNo++)
+            digestWritten(seqNo, chunk);
+
+        for (long seqNo = _seqNo + 1; seqNo <= _seqNo + _windowSize; seqNo++) {
+            if (_journal.isReceived(seqNo)) {
+                _received[slot(seqNo)] = true;
+                _outOfOrderCount++;
+                digestWritten(seqNo, chunk);
+            }
+        }
+
+        System.out.println("Resuming after packet " + _seqNo);
+    }
+
+    // Reads a payload that was written before back into the digest.
+    private void digestWritten(long seqNo, ByteBuffer chunk) {
+
+        long offset = (seqNo - _dataStartSeqNo) * _chunkSize;
+
+        chunk.clear();
+        chunk.limit((int)Math.max(0, Math.min(_chunkSize, _streamSize - offset)));
+
+        try {
+            while (chunk.hasRemaining()) {
+                if (_fileChannel.read(chunk, _rangeOffset + offset + chunk.position()) < 0)
+                    break;
+            }
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        chunk.flip();
+        _digest.addChunk(seqNo - _dataStartSeqNo, chunk);
+    }
+
+    // Records progress, once what has been written is safely on disk.
+    private void checkpoint() {
+
+        _lastCheckpointTime = Receiver.currentTime();
+
+        try {
+            if (_fileChannel != null)
+                _fileChannel.force(false);
+            _journal.save(_seqNo, _received, _digest);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    private void finishJournal() {
+
+        if (_journal == null)
+            return;
+
+        try {
+            if (_fileChannel != null)
+                _fileChannel.force(false);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        _journal.delete();
+    }
+
+    private void createBatch(Packet pkt) {
+
+        _totalFileSize = pkt.getTotalFileSize();
+        _fileName = pkt.getFileName();
+        _batch = true;
+
+        int entryCount = Math.max(0, pkt.getEntryCount());
+
+        _entryNames = new String[entryCount];
+        _entrySizes = new long[entryCount];
+        _entryOffsets = new long[entryCount];
+        _entryRemaining = new long[entryCount];
+        _entryChannels = new FileChannel[entryCount];
+
+        _manifestPkts = Math.max(0, pkt.getManifestPacketCount());
+        _dataStartSeqNo = 1 + _manifestPkts;
+
+        if ((pkt.getFlags() & Packet.FLAG_COMPRESSED) != 0)
+            startCompressed();
+
+        startFec(pkt);
+        startDigest(pkt, _totalFileSize);
+
+        try {
+            _root = Paths.get(_fileName).toAbsolutePath().normalize();
+            Files.createDirectories(_root);
+        } catch (IOException | InvalidPathException e) {
+            System.out.println(e.toString());
+        }
+
+        _started = true;
+
+        if (_manifestPkts == 0)
+            finishManifest();
+    }
+
+    private void addManifest(Packet pkt) {
+
+        if (pkt.getManifestEntries(_entryNames, _entrySizes) && ++_manifestReceived == _manifestPkts)
+            finishManifest();
+    }
+
+    // Lays the files out in the stream, now that all of them are known.
+    private void finishManifest() {
+
+        long offset = 0;
+
+        for (int i = 0; i < _entryNames.length; i++) {
+            _entryOffsets[i] = offset;
+            _entryRemaining[i] = _entrySizes[i];
+            offset += _entrySizes[i];
+
+            // No payload will ever create empty files.
+            if (_entrySizes[i] == 0) {
+                openEntry(i);
+                closeEntry(i);
+            }
+        }
+    }
+
+    private FileChannel openEntry(int entry) {
+
+        if (_entryChannels[entry] == null) {
+            Path path = resolveEntry(_entryNames[entry]);
+
+            if (path == null)
+                return null;
+
+            try {
+                Files.createDirectories(path.getParent());
+                _entryChannels[entry] = FileChannel.open(path,
+                                                         StandardOpenOption.CREATE,
+                                                         StandardOpenOption.WRITE,
+                                                         StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        return _entryChannels[entry];
+    }
+
+    private void closeEntry(int entry) {
+        try {
+            if (_entryChannels[entry] != null)
+                _entryChannels[entry].close();
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        _entryChannels[entry] = null;
+    }
+
+    // Where a file of the batch goes, or null if its name would take it
+    // outside the directory.
+    private Path resolveEntry(String name) {
+
+        if (name == null || _root == null)
+            return null;
+
+        try {
+            Path path = _root.resolve(name).normalize();
+
+            if (path.startsWith(_root) && !path.equals(_root))
+                return path;
+        } catch (InvalidPathException e) {
+        }
+
+        System.out.println("Skipping " + name);
+        return null;
+    }
+
+    // Helper function: Index of the last file that starts at or before
+    // position.
+    private int findEntry(long position) {
+        int low = 0, high = _entryOffsets.length - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (_entryOffsets[mid] <= position)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        return low;
+    }
+
+    private void closeFile() {
+        try {
+            if (_fileChannel != null && _fileChannel.isOpen())
+                _fileChannel.close();
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        if (_entryChannels != null) {
+            for (int i = 0; i < _entryChannels.length; i++)
+                closeEntry(i);
+        }
+    }
+
+    private void startDigest(Packet pkt, long streamSize) {
+
+        _checkDigest = (pkt.getFlags() & Packet.FLAG_DIGEST) != 0;
+        _streamSize = streamSize;
+        _digest = new StreamDigest(_chunkSize);
+    }
+
+    // Whether the stream came out as the sender read it, both in length and
+    // in content, for a sender that says what it read.
+    private boolean verifyDigest(Packet pkt) {
+
+        if (!_checkDigest)
+            return true;
+
+        byte[] digest = pkt.getDigest();
+
+        if (_digest != null && digest != null && _digest.getLength() == _streamSize
+                && Arrays.equals(_digest.digest(), digest))
+            return true;
+
+        System.out.println("Digest mismatch: " + _fileName + " is not what was sent.");
+        return false;
+    }
+
+    private void startCompressed() {
+
+        _sequential = true;
+        _compressed = true;
+        _streamPosition = 0;
+        _inflater = new Inflater(true);
+        _inflateBuffer = ByteBuffer.allocate(INFLATE_BUFFER_SIZE);
+    }
+
+    // Opens the basis, if there is one, and starts signing it. The new file
+    // is built next to it.
+    private void startDelta(Packet headerPkt) {
+
+        _sequential = true;
+        _delta = true;
+        _streamPosition = 0;
+        _deltaPath = Paths.get(_fileName + ".delta");
+
+        try {
+            _basisChannel = FileChannel.open(Paths.get(_fileName), StandardOpenOption.READ);
+            _basisSize = _basisChannel.size();
+        } catch (NoSuchFileException e) {
+            _basisSize = 0;
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        _blockSize = BlockChecksum.getBlockSize(_basisSize);
+        _blockBuffer = ByteBuffer.allocate(_blockSize);
+
+        _signaturePkt = new Packet();
+        _signaturePkt.setSessionId(_sessionId);
+        _signaturePkt.setVersion(headerPkt.getVersion());
+        _pendingPages = new ArrayList<Long>();
+
+        if (_basisChannel != null) {
+            _signer = new BasisSigner(_basisChannel, _basisSize, _blockSize,
+                                      _signaturePkt.getMaxSignatureCount(), this,
+                                      _signedSessions, _selector);
+            _signer.start();
+        }
+    }
+
+    // Answers a request for a page of signatures of the basis, once the page
+    // has been signed. A session that is not a delta transfer has no basis,
+    // and says so.
+    private void sendSignaturePacket(Packet requestPkt) {
+
+        long page = requestPkt.getSeqNo();
+
+        if (_signaturePkt == null || page < 0)
+            return;
+
+        _signaturePkt.setSocketAddress(requestPkt.getSocketAddress());
+
+        if (!isPageSigned(page)) {
+            if (!_pendingPages.contains(page))
+                _pendingPages.add(page);
+            return;
+        }
+
+        sendSignaturePage(page);
+    }
+
+    // Called by the receiver when the BasisSigner has signed some more.
+    public void sendPendingSignatures() {
+
+        if (_signer == null)
+            return;
+
+        Iterator<Long> it = _pendingPages.iterator();
+
+        while (it.hasNext()) {
+            long page = it.next();
+
+            if (isPageSigned(page)) {
+                sendSignaturePage(page);
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isPageSigned(long page) {
+        return _signer == null || _signer.isSigned((page + 1) * _signaturePkt.getMaxSignatureCount());
+    }
+
+    private void sendSignaturePage(long page) {
+
+        Packet pkt = _signaturePkt;
+        SocketAddress address = pkt.getSocketAddress();
+        byte version = pkt.getVersion();
+
+        pkt.reset();
+        pkt.setVersion(version);
+        pkt.setSocketAddress(address);
+        pkt.setPacketType(Packet.SIGNATURE_PACKET_TYPE);
+        pkt.setSeqNo(page);
+        pkt.setBasisSize(_basisChannel != null ? _basisSize : 0);
+        pkt.setBlockSize(_blockSize);
+
+        long blockCount = (_signer != null) ? _signer.getBlockCount() : 0;
+        long block = page * pkt.getMaxSignatureCount();
+
+        while (block < blockCount
+                && pkt.addSignature(_signer.getWeak(block), _signer.getStrong(block)))
+            block++;
+
+        try {
+            pkt.send(_channel);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    // Reads a whole block of the basis into _blockBuffer.
+    private boolean readBlock(long block) {
+
+        ByteBuffer bf = _blockBuffer;
+        bf.clear();
+
+        try {
+            long position = block * _blockSize;
+
+            while (bf.hasRemaining()) {
+                int count = _basisChannel.read(bf, position + bf.position());
+
+                if (count < 0)
+                    return false;
+            }
+        } catch (IOException e) {
+            System.out.println(e.toString());
+            return false;
+        }
+
+        bf.flip();
+        return true;
+    }
+
+    // Carries out the commands in a payload.
+    private void applyDelta(ByteBuffer payload) {
+
+        try {
+            while (payload.hasRemaining()) {
+                byte command = payload.get();
+
+                if (command == Packet.DELTA_LITERAL) {
+                    int length = (int)Math.min(Packet.getVarLong(payload), payload.remaining());
+                    int limit = payload.limit();
+
+                    payload.limit(payload.position() + length);
+                    _streamPosition += writeStream(_streamPosition, payload);
+                    payload.limit(limit);
+                } else if (command == Packet.DELTA_COPY) {
+                    long block = Packet.getVarLong(payload);
+                    long count = Packet.getVarLong(payload);
+
+                    for (long i = 0; i < count; i++) {
+                        if (_basisChannel == null || !readBlock(block + i))
+                            throw new IOException("Block " + (block + i) + " is not in the basis");
+
+                        _streamPosition += writeStream(_streamPosition, _blockBuffer);
+                    }
+                } else {
+                    throw new IOException("Unknown delta command " + command);
+                }
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    // Puts the new file in place of the basis, unless it came out wrong,
+    // when the basis is left as it was.
+    private void finishDelta() {
+
+        closeBasis();
+
+        Path path = Paths.get(_fileName);
+
+        try {
+            if (!_verified) {
+                Files.deleteIfExists(_deltaPath);
+                return;
+            }
+
+            try {
+                Files.move(_deltaPath, path, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(_deltaPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    private void closeBasis() {
+        if (_signer != null)
+            _signer.stop();
+        _signer = null;
+
+        try {
+            if (_basisChannel != null)
+                _basisChannel.close();
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+        _basisChannel = null;
+    }
+
+    // Writes the payload at its own offset, so it does not matter which
+    // packets have arrived before it. Compressed and delta transfers write
+    // it where the last one ended instead.
+    private void updateFile(Packet pkt) {
+
+        ByteBuffer payload = pkt.getPayload();
+
+        if (!_sequential) {
+            _digest.addChunk(pkt.getSeqNo() - _dataStartSeqNo, payload);
+            writeStream((pkt.getSeqNo() - _dataStartSeqNo) * _chunkSize, payload);
+        } else if (_delta) {
+            applyDelta(payload);
+        } else if (pkt.getPacketType() == Packet.COMPRESSED_PAYLOAD_PACKET_TYPE) {
+            inflate(payload);
+        } else {
+            _streamPosition += writeStream(_streamPosition, payload);
+        }
+    }
+
+    // The sender flushes at the end of every block, so all of the data
+    // before this payload is out once the inflater runs dry.
+    private void inflate(ByteBuffer payload) {
+
+        _inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(),
+                           payload.remaining());
+
+        try {
+            int count;
+
+            while ((count = _inflater.inflate(_inflateBuffer.array())) > 0) {
+                _inflateBuffer.clear();
+                _inflateBuffer.limit(count);
+                _streamPosition += writeStream(_streamPosition, _inflateBuffer);
+            }
+        } catch (DataFormatException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    // Writes data at a position in the stream the sender sends, which is
+    // either its part of the file or the files of a batch. Returns how much
+    // was written. Data written in sequence goes into the digest here.
+    private int writeStream(long position, ByteBuffer data) {
+
+        int length = data.remaining();
+
+        if (_sequential)
+            _digest.update(data);
+
+        long startTime = System.nanoTime();
+
+        if (_batch) {
+            updateEntries(position, data);
+        } else {
+            position += _rangeOffset;
+
+            try {
+                while (data.hasRemaining())
+                    position += _fileChannel.write(data, position);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+        _currFileSize += length;
+
+        _metrics.addWriteLatency(System.nanoTime() - startTime);
+        _metrics.addDelivered(length);
+
+        return length;
+    }
+
+    // Splits a payload of a batch between the files it covers. Each file is
+    // closed as soon as all of it has been written.
+    private void updateEntries(long position, ByteBuffer payload) {
+
+        int limit = payload.limit();
+        int entry = findEntry(position);
+
+        while (payload.hasRemaining() && entry < _entryOffsets.length) {
+            long end = _entryOffsets[entry] + _entrySizes[entry];
+
+            if (position >= end) {
+                entry++;
+                continue;
+            }
+
+            int count = (int)Math.min(payload.remaining(), end - position);
+            payload.limit(payload.position() + count);
+
+            FileChannel channel = openEntry(entry);
+            long filePosition = position - _entryOffsets[entry];
+
+            try {
+                while (channel != null && payload.hasRemaining())
+                    filePosition += channel.write(payload, filePosition);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+
+            payload.position(payload.limit());
+            payload.limit(limit);
+            position += count;
+
+            _entryRemaining[entry] -= count;
+            if (_entryRemaining[entry] == 0)
+                closeEntry(entry);
+
+            entry++;
+        }
+    }
+};
+
+// Receiving endpoint. One thread waits on a non-blocking channel through a
+// selector, and hands each packet to the session it belongs to, so any number
+// of senders can transfer at the same time. Without server mode, it stops
+// after the first transfer.
 class Receiver implements Runnable {
 
 // ***************************************************************************
 // Variables
 // ***************************************************************************
 
-// Socket stuff.
+// Channel stuff.
     private int _port;
-    private DatagramSocket _socket;
+    private DatagramChannel _channel;
+    private Selector _selector;
 
-    private InetAddress _address;
-    private final static String HOSTNAME = "localhost";
+    private final static int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
 
-// File stuff.
-    private FileOutputStream _fos;
-    private BufferedOutputStream _bos;
+// Packets handled per wakeup at most, so that timers are not starved.
+    private final static int RECEIVE_BATCH_SIZE = 64;
 
-    private long _totalFileSize;
-    private long _currFileSize;
-    private long _seqNo;
-    private String _fileName;
+// Sessions, by sessionKey().
+    private HashMap<Long, ReceiverSession> _sessions;
+    private ReceiverSession _lastSession;       // Saves the lookup for runs of packets.
+    private int _finishedSessions;
+    private boolean _serverMode;
 
-    private boolean _done;
+// A finished session stays around for a while to answer its sender again, in
+// case the termination response was lost. Unfinished sessions that go quiet
+// are given up on.
+    private final static long SESSION_LINGER = 1000;
+    private final static long SESSION_TIMEOUT = 30000;
+    private final static long REAP_INTERVAL = 100;
+
+// What the last few reaped sessions came to, by sessionKey(), so that a
+// sender still terminating one hears the same answer.
+    private final static int FINISHED_RESULTS_SIZE = 1024;
+    private LinkedHashMap<Long, Boolean> _finishedResults;
 
-// Timer
-    private Timer _sendTimer;
-    private TimerTask _sendTask;
+    private long _lastReapTime;
+
+// Shared by every session.
+    private int _windowSize;
+    private PacketPool _pktPool;
+    private TimerWheel _sendTimer;
+    private Packet _strayResponsePkt;           // For sessions that are gone.
+    private Queue<ReceiverSession> _signedSessions; // See BasisSigner.
+    private TransferMetrics _metrics;           // Of every session together.
+    private long _statsInterval;                // Milliseconds, 0 for no stats line.
 
 
 // ***************************************************************************
@@ -41,158 +1764,293 @@ class Receiver implements Runnable {
 // ***************************************************************************
 
     // Constructor
-    public Receiver(String localPort) {
+    public Receiver(String localPort, int windowSize, boolean serverMode) {
 
         try {
             _port = Integer.parseInt(localPort);
-            _socket = new DatagramSocket(_port);
 
-            _address = InetAddress.getByName(HOSTNAME);
-        } catch (UnknownHostException e) {
-            System.out.println(e.toString());
-        } catch (SocketException e) {
+            _channel = DatagramChannel.open();
+            _channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            _channel.bind(new InetSocketAddress(_port));
+            _channel.configureBlocking(false);
+
+            _selector = Selector.open();
+            _channel.register(_selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
             System.out.println(e.toString());
         }
 
-        _fos = null;
-        _bos = null;
+        _sessions = new HashMap<Long, ReceiverSession>();
+        _lastSession = null;
+        _finishedSessions = 0;
+        _serverMode = serverMode;
 
-        _totalFileSize = 0;
-        _currFileSize = 0;
-        _seqNo = -1;
-        _fileName = "";
+        _finishedResults = new LinkedHashMap<Long, Boolean>() {
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > FINISHED_RESULTS_SIZE;
+            }
+        };
+
+        _lastReapTime = currentTime();
+
+        _windowSize = windowSize;
+        _pktPool = new PacketPool();
+        _sendTimer = new TimerWheel();
+        _strayResponsePkt = new Packet();
+        _signedSessions = new ConcurrentLinkedQueue<ReceiverSession>();
+
+        _metrics = new TransferMetrics("Receiver", "port " + localPort);
+        _metrics.register();
+        _statsInterval = 0;
+    }
+
+    // Prints the metrics every intervalMillis while running, and once more
+    // at the end, with the CPU time taken. 0 for never.
+    public void setStatsInterval(long intervalMillis) {
+        _statsInterval = intervalMillis;
     }
 
     // Main update function
     public void run() {
 
-        Packet sendPkt = null, rcvPkt = null;
+        if (_statsInterval > 0)
+            _metrics.startStats(_statsInterval);
 
         do {
-            rcvPkt = new Packet();
+            // Wait for packets, or until a response needs resending or the
+            // sessions need checking.
+            long timeout = _sendTimer.getTimeout();
+
+            if (!_sessions.isEmpty())
+                timeout = (timeout < 0) ? REAP_INTERVAL : Math.min(timeout, REAP_INTERVAL);
+
             try {
-                _socket.receive(rcvPkt.getPacket());
-                stopSendPacket();
+                if (timeout < 0)
+                    _selector.select();
+                else if (timeout == 0)
+                    _selector.selectNow();
+                else
+                    _selector.select(timeout);
 
-                sendPkt = new Packet(_address, rcvPkt.getPacket().getPort());
-                // Verify that the packet is valid.
-                if (rcvPkt.verify()) {
-                    parsePacket(rcvPkt);
-                }
-                System.out.println(_seqNo);
-                if (!_done) {
-                    makeResponsePacket(sendPkt, Packet.MSG_ACK);
-                    startSendPacket(sendPkt);
-                } else {
-                    sendResponsePacket(sendPkt, Packet.MSG_ACK);
-                }
-                //sendResponsePacket(sendPkt, Packet.MSG_ACK);
+                _selector.selectedKeys().clear();
+
+                receivePackets();
+                sendPendingSignatures();
             } catch (IOException e) {
                 System.out.println(e.toString());
             }
 
-            //System.out.println(_currFileSize + "/" + _totalFileSize);
-        } while (!_done);
+            _sendTimer.advance();
+
+            long now = currentTime();
+            if (now - _lastReapTime >= REAP_INTERVAL) {
+                reapSessions(now);
+                _lastReapTime = now;
+            }
+        } while (_serverMode || _finishedSessions == 0 || !_sessions.isEmpty());
+
+        for (ReceiverSession session : _sessions.values())
+            session.close();
+        _sessions.clear();
 
-        // Need to flush out those last few bytes.
         try {
-            _bos.close();
+            _selector.close();
+            _channel.close();
         } catch (IOException e) {
             System.out.println(e.toString());
         }
-    }
 
-    private void makeResponsePacket(Packet pkt, short response) {
+        String summary = _metrics.finish();
 
-        pkt.setPacketType(Packet.RESPONSE_PACKET_TYPE);
-        pkt.setResponse(response);
-        pkt.setSeqNo(_seqNo);
+        if (_statsInterval > 0)
+            System.out.println(summary);
     }
 
-    private void startSendPacket(Packet pkt) {
-        _sendTimer = new Timer();
-        _sendTask = new SendTask(_socket, pkt);
-        _sendTimer.schedule(_sendTask, 0, 50);
+    // Milliseconds, for session bookkeeping.
+    public static long currentTime() {
+        return System.nanoTime() / 1000000L;
     }
 
-    private void stopSendPacket() {
-        if (_sendTimer == null)
-            return;
+    // Handles the packets that have arrived, without blocking.
+    private void receivePackets() throws IOException {
 
-        _sendTimer.cancel();
-        _sendTimer = null;
-        _sendTask = null;
-    }
+        Packet rcvPkt = _pktPool.acquire();
 
-    private void parsePacket(Packet pkt) {
-        //System.out.println("rcvPkt.getSeqNo()="+pkt.getSeqNo());
-        if (pkt.getSeqNo() > _seqNo || pkt.getSeqNo() == -1) {
-            if (pkt.getSeqNo() > 0) {
-                updateFile(pkt);
-                //System.out.println("updateFile");
-            } else if (pkt.getSeqNo() == 0) {
-                createFile(pkt);
-                //System.out.println("createFile");
-            } else if (pkt.getSeqNo() == -1) {
-                _done = true;
-                //System.out.println("doneFile");
+        for (int i = 0; i < RECEIVE_BATCH_SIZE && rcvPkt.receive(_channel); i++) {
+            _metrics.addReceived(rcvPkt.getPacket().getLength());
+
+            // Corrupted packets cannot even be told which session they are for.
+            if (!rcvPkt.verify()) {
+                _metrics.addCorrupt();
+                rcvPkt.reset();
+            } else if (dispatchPacket(rcvPkt)) {
+                rcvPkt = _pktPool.acquire();
+            } else {
+                rcvPkt.reset();
             }
-            _seqNo = pkt.getSeqNo();
         }
+
+        _pktPool.release(rcvPkt);
     }
 
-    private void sendResponsePacket(Packet pkt, short response) {
+    // Answers the requests for signatures that have been signed since.
+    private void sendPendingSignatures() {
 
-        pkt.setResponse(response);
-        pkt.setSeqNo(_seqNo);
-        pkt.setPacketType(Packet.RESPONSE_PACKET_TYPE);
+        ReceiverSession session;
 
-        try {
-            _socket.send(pkt.create());
-        } catch (IOException e) {
-            System.out.println(e.toString());
-        }
+        while ((session = _signedSessions.poll()) != null)
+            session.sendPendingSignatures();
     }
 
-    private void createFile(Packet pkt) {
+    // Returns true if the session holds on to the packet.
+    private boolean dispatchPacket(Packet pkt) {
 
-        _totalFileSize = pkt.getTotalFileSize();
+        long sessionKey = sessionKey(pkt);
+        ReceiverSession session = findSession(sessionKey);
 
-        if (_fos == null) {
-            try {
-                _fos = new FileOutputStream(pkt.getFileName());
-                _bos = new BufferedOutputStream(_fos);
-            } catch (FileNotFoundException e) {
-                System.out.println(e.toString());
+        if (session == null) {
+            // A sender still terminating a session that has been reaped only
+            // needs to hear how it went.
+            if (pkt.getPacketType() == Packet.TERMINATION_PACKET_TYPE) {
+                sendStrayResponsePacket(pkt);
+                return false;
             }
+
+            // Anything else is late, for a session that has been reaped, or
+            // early, ahead of its header, which the sender resends anyway.
+            // Only a header opens a session.
+            if (pkt.getPacketType() != Packet.FILE_HEADER_PACKET_TYPE
+                    && pkt.getPacketType() != Packet.BATCH_HEADER_PACKET_TYPE)
+                return false;
+
+            session = new ReceiverSession(sessionKey, pkt.getSessionId(), _channel,
+                                          _sendTimer, _pktPool, _metrics, _windowSize,
+                                          _signedSessions, _selector);
+            _sessions.put(sessionKey, session);
         }
+
+        _lastSession = session;
+
+        return session.handlePacket(pkt);
     }
 
-    private void updateFile(Packet pkt) {
+    private ReceiverSession findSession(long sessionKey) {
+
+        if (_lastSession != null && _lastSession.getSessionKey() == sessionKey)
+            return _lastSession;
+
+        return _sessions.get(sessionKey);
+    }
+
+    // Version 1 packets have no session ID, so the address of their sender
+    // stands in for it.
+    private static long sessionKey(Packet pkt) {
+
+        if (pkt.getVersion() != Packet.PROTOCOL_V1)
+            return pkt.getSessionId() & 0xFFFFFFFFL;
+
+        InetSocketAddress address = (InetSocketAddress)pkt.getSocketAddress();
+
+        return (1L << 48) | ((long)address.getPort() << 32)
+                | (address.getAddress().hashCode() & 0xFFFFFFFFL);
+    }
+
+    // Closes the sessions that have finished lingering or gone quiet.
+    private void reapSessions(long now) {
+
+        Iterator<ReceiverSession> it = _sessions.values().iterator();
+
+        while (it.hasNext()) {
+            ReceiverSession session = it.next();
+            long idleTime = now - session.getLastActiveTime();
+
+            if (session.isDone() ? idleTime < SESSION_LINGER : idleTime < SESSION_TIMEOUT)
+                continue;
+
+            if (session.isDone()) {
+                _finishedSessions++;
+                _finishedResults.put(session.getSessionKey(), session.isVerified());
+            } else
+                System.out.println("Session " + session.getSessionId() + " timed out");
+
+            session.close();
+            it.remove();
+
+            if (_lastSession == session)
+                _lastSession = null;
+        }
+    }
+
+    private void sendStrayResponsePacket(Packet rcvPkt) {
+
+        Packet pkt = _strayResponsePkt;
+        pkt.reset();
+        pkt.setVersion(rcvPkt.getVersion());
+        pkt.setSessionId(rcvPkt.getSessionId());
+        pkt.setSocketAddress(rcvPkt.getSocketAddress());
+
+        // A session this receiver knows nothing of may have been lost with
+        // the receiver restarting, so a digest it carries cannot be vouched
+        // for. Only terminations without one are simply acknowledged.
+        Boolean verified = _finishedResults.get(sessionKey(rcvPkt));
+
+        if (verified == null)
+            verified = rcvPkt.getDigest() == null;
+
+        pkt.setResponse(verified ? Packet.MSG_ACK : Packet.MSG_NAK);
+        pkt.setSeqNo(Packet.TERMINATION_SEQUENCE_NO);
+        pkt.setPacketType(Packet.RESPONSE_PACKET_TYPE);
 
         try {
-            _bos.write(pkt.getPayloadData());
+            pkt.send(_channel);
         } catch (IOException e) {
             System.out.println(e.toString());
         }
-        _currFileSize += pkt.getPayloadDataSize();
-
-        //if (_currFileSize >= _totalFileSize)
-        //    _done = true;
     }
 };
 
 class FileReceiver {
 
+    private final static int DEFAULT_WINDOW_SIZE = 64;
+
     public static void main(String[] args) {
-        // check if the number of command line argument is 1
-        if (args.length != 1) {
-            System.out.println("Usage: java FileReceiver <port>");
-            System.exit(1);
+        // check if there is 1 command line argument, followed by options.
+        if (args.length < 1) {
+            printUsage();
+        }
+
+        int windowSize = DEFAULT_WINDOW_SIZE;
+        boolean serverMode = false;
+        double statsSeconds = 0;
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-window":
+                    if (++i == args.length)
+                        printUsage();
+                    windowSize = Integer.parseInt(args[i]);
+                    break;
+                case "-server": serverMode = true; break;
+                case "-stats":
+                    if (++i == args.length)
+                        printUsage();
+                    statsSeconds = Double.parseDouble(args[i]);
+                    break;
+                default: printUsage();
+            }
         }
 
-        Receiver program = new Receiver(args[0]);
+        if (windowSize < 1 || statsSeconds < 0)
+            printUsage();
+
+        Receiver program = new Receiver(args[0], windowSize, serverMode);
+        program.setStatsInterval((long)(statsSeconds * 1000));
 
         program.run();
     }
+
+    private static void printUsage() {
+        System.out.println("Usage: java FileReceiver <port> [-window <size>] [-server] [-stats <seconds>]");
+        System.exit(1);
+    }
 }
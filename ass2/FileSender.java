@@ -3,181 +3,1583 @@
 import java.net.*;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
-class SendTask extends TimerTask {
+// Retransmission timeout estimator (Jacobson/Karels, as in RFC 6298).
+class RttEstimator {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+// Timeout bounds, in milliseconds.
+    public final static long INITIAL_RTO = 250;
+    public final static long MIN_RTO = 10;
+    public final static long MAX_RTO = 10000;
+
+    private final static long CLOCK_GRANULARITY = 1000;    // TimerWheel tick, us
+
+// Smoothed round trip time and its mean deviation, in microseconds.
+    private long _srtt;
+    private long _rttvar;
+    private boolean _hasSample;
+
+    private long _rto;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public RttEstimator() {
+        _srtt = 0;
+        _rttvar = 0;
+        _hasSample = false;
+
+        _rto = INITIAL_RTO;
+    }
+
+    // Feeds in the round trip time of a packet that was only sent once.
+    public void addSample(long rttNanos) {
+
+        long rtt = Math.max(1, rttNanos / 1000);
+
+        if (!_hasSample) {
+            _srtt = rtt;
+            _rttvar = rtt / 2;
+            _hasSample = true;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+            _rttvar += (Math.abs(_srtt - rtt) - _rttvar) / 4;
+            _srtt += (rtt - _srtt) / 8;
+        }
+
+        long rto = (_srtt + Math.max(CLOCK_GRANULARITY, 4 * _rttvar) + 999) / 1000;
+        _rto = Math.min(MAX_RTO, Math.max(MIN_RTO, rto));
+    }
+
+    // Current retransmission timeout, in milliseconds.
+    public long getTimeout() {
+        return _rto;
+    }
+
+    public long getSmoothedRtt() {
+        return _srtt;
+    }
+
+    public long getRttVariance() {
+        return _rttvar;
+    }
+}
+
+// Congestion window for the sender: slow start, then additive increase, and
+// multiplicative decrease on loss (as in RFC 5681). All values are in
+// packets.
+class CongestionControl {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    public final static int INITIAL_WINDOW = 10;
+    public final static int MIN_SLOW_START_THRESHOLD = 2;
+
+    private double _cwnd;
+    private double _ssthresh;
+
+// Losses of packets sent before this point belong to the last loss event.
+    private long _recoverySeqNo;
+
+// The window before the last loss event, put back if the receiver reports
+// every packet resent for it as a duplicate (as in RFC 3708): then nothing
+// was lost, it was only late.
+    private long _lossSeqNo;
+    private double _priorCwnd;
+    private double _priorSsthresh;
+    private int _resends;
+    private int _duplicates;
+    private boolean _canUndo;
+
+    private long _lossEvents;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public CongestionControl() {
+        _cwnd = INITIAL_WINDOW;
+        _ssthresh = Double.MAX_VALUE;
+        _recoverySeqNo = 0;
+        _canUndo = false;
+        _lossEvents = 0;
+    }
+
+    // A new packet was acknowledged.
+    public void onAck() {
+        if (_cwnd < _ssthresh)
+            _cwnd += 1;
+        else
+            _cwnd += 1 / _cwnd;
+    }
+
+    // seqNo was lost, detected either by SACKs (fast retransmit) or by its
+    // timer running out. nextSeqNo is the next packet that will be sent.
+    public void onLoss(long seqNo, long nextSeqNo, int inFlight, boolean timedOut) {
+
+        // Only back off once for everything that was in flight together.
+        if (seqNo < _recoverySeqNo) {
+            _resends++;
+            return;
+        }
+
+        _lossSeqNo = seqNo;
+        _priorCwnd = _cwnd;
+        _priorSsthresh = _ssthresh;
+        _resends = 1;
+        _duplicates = 0;
+        _canUndo = true;
+
+        _ssthresh = Math.max(MIN_SLOW_START_THRESHOLD, inFlight / 2);
+        _cwnd = timedOut ? 1 : _ssthresh;
+        _recoverySeqNo = nextSeqNo;
+        _lossEvents++;
+    }
+
+    // The receiver got seqNo twice, so one of the copies was resent for
+    // nothing.
+    public void onDuplicate(long seqNo) {
+
+        if (!_canUndo || seqNo < _lossSeqNo || seqNo >= _recoverySeqNo)
+            return;
+
+        if (++_duplicates < _resends)
+            return;
+
+        _cwnd = Math.max(_cwnd, _priorCwnd);
+        _ssthresh = _priorSsthresh;
+        _canUndo = false;
+        _lossEvents--;
+    }
+
+    // Max number of packets that may be in flight.
+    public int getWindow() {
+        return (int)_cwnd;
+    }
+
+    public double getSlowStartThreshold() {
+        return _ssthresh;
+    }
+
+    public boolean isSlowStart() {
+        return _cwnd < _ssthresh;
+    }
+
+    public long getLossEvents() {
+        return _lossEvents;
+    }
+
+    public String toString() {
+        String ssthresh = (_ssthresh == Double.MAX_VALUE) ? "inf" : String.format("%.0f", _ssthresh);
+
+        return String.format("cwnd=%.2f ssthresh=%s losses=%d", _cwnd, ssthresh, _lossEvents);
+    }
+}
+
+// What a Sender sends, read by offset.
+interface FileSource {
+    public int read(long position, byte[] dst, int offset, int length) throws IOException;
+    public long size();
+    public void close() throws IOException;
+}
+
+// Read only view of a file through memory mappings, so that any chunk can be
+// read straight from its offset. Files too large for one mapping are mapped
+// in segments, as they are first needed.
+class MappedFile implements FileSource {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static long SEGMENT_SIZE = 1L << 30;     // 1 GB
+
+    private FileChannel _channel;
+    private long _size;
+    private MappedByteBuffer[] _segments;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public MappedFile(String fileName) throws IOException {
+
+        _channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        _size = _channel.size();
+        _segments = new MappedByteBuffer[(int)((_size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+    }
+
+    // Copies up to length bytes from position into dst, returning how many
+    // were copied (0 at the end of the file).
+    public int read(long position, byte[] dst, int offset, int length) throws IOException {
+
+        length = (int)Math.max(0, Math.min(length, _size - position));
+
+        int copied = 0;
+
+        while (copied < length) {
+            int index = (int)(position / SEGMENT_SIZE);
+            int segmentOffset = (int)(position % SEGMENT_SIZE);
+
+            if (_segments[index] == null) {
+                long segmentStart = index * SEGMENT_SIZE;
+                _segments[index] = _channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                                                Math.min(SEGMENT_SIZE, _size - segmentStart));
+            }
+
+            int count = Math.min(length - copied, _segments[index].limit() - segmentOffset);
+            _segments[index].get(segmentOffset, dst, offset + copied, count);
+
+            copied += count;
+            position += count;
+        }
+
+        return copied;
+    }
+
+    public long size() {
+        return _size;
+    }
+
+    public void close() throws IOException {
+        _segments = null;
+        _channel.close();
+    }
+}
+
+// Every file under a directory, as one stream of the files one after another
+// in name order. Small files are not worth mapping, so they are read with
+// plain file reads, one file open at a time.
+class BatchSource implements FileSource {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    // Names have to fit in a manifest packet.
+    private final static int MAX_NAME_LENGTH = 512;
+
+    private File[] _files;
+    private byte[][] _names;        // Relative to the directory, '/' separated, UTF-8.
+    private long[] _sizes;
+    private long[] _offsets;        // Where each file starts in the stream.
+    private long _size;
+
+    private int _openEntry;
+    private RandomAccessFile _openFile;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public BatchSource(String dirName) throws IOException {
+
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<String> names = new ArrayList<String>();
+        addEntries(new File(dirName), "", files, names);
+
+        int count = files.size();
+
+        _files = files.toArray(new File[count]);
+        _names = new byte[count][];
+        _sizes = new long[count];
+        _offsets = new long[count];
+        _size = 0;
+
+        for (int i = 0; i < count; i++) {
+            _names[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            if (_names[i].length > MAX_NAME_LENGTH)
+                throw new IOException("File name too long: " + names.get(i));
+
+            _sizes[i] = _files[i].length();
+            _offsets[i] = _size;
+            _size += _sizes[i];
+        }
+
+        _openEntry = -1;
+        _openFile = null;
+    }
+
+    // Helper function: Lists the files under dir, depth first in name order.
+    private void addEntries(File dir, String prefix, ArrayList<File> files,
+                            ArrayList<String> names) throws IOException {
+
+        File[] children = dir.listFiles();
+        if (children == null)
+            throw new IOException("Cannot list " + dir);
+
+        Arrays.sort(children);
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addEntries(child, prefix + child.getName() + "/", files, names);
+            } else if (child.isFile()) {
+                files.add(child);
+                names.add(prefix + child.getName());
+            }
+        }
+    }
+
+    public int read(long position, byte[] dst, int offset, int length) throws IOException {
+
+        length = (int)Math.max(0, Math.min(length, _size - position));
+
+        int copied = 0;
+        int entry = findEntry(position);
+
+        while (copied < length) {
+            long end = _offsets[entry] + _sizes[entry];
+
+            // Empty files take up no room in the stream.
+            if (position >= end) {
+                entry++;
+                continue;
+            }
+
+            int count = (int)Math.min(length - copied, end - position);
+
+            RandomAccessFile file = openEntry(entry);
+            file.seek(position - _offsets[entry]);
+            file.readFully(dst, offset + copied, count);
+
+            copied += count;
+            position += count;
+        }
+
+        return copied;
+    }
+
+    // Helper function: Index of the last file that starts at or before
+    // position.
+    private int findEntry(long position) {
+        int low = 0, high = _offsets.length - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (_offsets[mid] <= position)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        return low;
+    }
+
+    private RandomAccessFile openEntry(int entry) throws IOException {
+
+        if (entry != _openEntry) {
+            if (_openFile != null)
+                _openFile.close();
+
+            _openFile = new RandomAccessFile(_files[entry], "r");
+            _openEntry = entry;
+        }
+
+        return _openFile;
+    }
+
+    // Number of manifest packets it takes to list every file, with capacity
+    // bytes of entries in each.
+    public int getManifestPacketCount(int capacity) {
+        int packets = 0;
+        int used = capacity;
+
+        for (byte[] name : _names) {
+            int length = Packet.getManifestEntryLength(name.length);
+
+            if (used + length > capacity) {
+                packets++;
+                used = 0;
+            }
+            used += length;
+        }
+
+        return packets;
+    }
+
+    // Lists as many files as fit into a manifest packet, from firstEntry.
+    // Returns the index of the first file left out.
+    public int fillManifest(Packet pkt, int firstEntry) {
+        int entry = firstEntry;
+
+        pkt.setFirstEntry(firstEntry);
+
+        while (entry < _names.length && pkt.addManifestEntry(_names[entry], _sizes[entry]))
+            entry++;
+
+        return entry;
+    }
+
+    public int getEntryCount() {
+        return _names.length;
+    }
+
+    public long size() {
+        return _size;
+    }
+
+    public void close() throws IOException {
+        if (_openFile != null)
+            _openFile.close();
+        _openFile = null;
+        _openEntry = -1;
+    }
+}
+
+// Turns part of a file into payloads one Deflate stream long, for sending with
+// FLAG_COMPRESSED. The file is taken a block at a time, and a block that
+// barely shrinks turns compression off for the next few blocks, which then go
+// out as plain payloads. Each compressed block is flushed with SYNC_FLUSH, so
+// the receiver can inflate everything sent so far whatever comes next.
+class PayloadCompressor {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int BLOCK_SIZE = 64 * 1024;
+
+// A block that compresses to more than 9/10 of its size is not worth it.
+    private final static int BYPASS_RATIO_NUMERATOR = 9;
+    private final static int BYPASS_RATIO_DENOMINATOR = 10;
+    private final static int BYPASS_BLOCKS = 16;        // Blocks sent plain before trying again.
+
+    private FileSource _file;
+    private long _position;         // Next byte of the file to take.
+    private long _end;
+
+    private Deflater _deflater;
+    private byte[] _block;
+    private long _blockEnd;         // Where the current block ends in the file.
+    private int _blockLength;
+    private long _blockStartOut;    // _deflater.getBytesWritten() when it started.
+    private boolean _compressing;   // The current block is compressed.
+    private boolean _drained;       // Everything of the current block is out.
+    private int _bypassBlocks;      // Blocks left to send plain.
+
+    private StreamDigest _digest;   // Of the file as it is taken.
+
+    private long _bytesIn;
+    private long _bytesOut;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public PayloadCompressor(FileSource file, long offset, long size, StreamDigest digest) {
+
+        _file = file;
+        _position = offset;
+        _end = offset + size;
+
+        _deflater = new Deflater(Deflater.BEST_SPEED, true);
+        _block = new byte[BLOCK_SIZE];
+        _blockEnd = offset;
+        _blockLength = 0;
+        _blockStartOut = 0;
+        _compressing = false;
+        _drained = true;
+        _bypassBlocks = 0;
+
+        _digest = digest;
+
+        _bytesIn = 0;
+        _bytesOut = 0;
+    }
+
+    // Fills the payload of a packet whose sequence number has been set with
+    // up to max bytes, and sets its type. Compressed and plain data never
+    // share a packet. Returns false once there is nothing left to send.
+    public boolean fill(Packet pkt, int max) throws IOException {
+
+        byte[] data = pkt.getData();
+        int offset = pkt.getPayloadOffset();
+        int length = 0;
+
+        while (length < max) {
+            if (isBlockDone()) {
+                if (_position >= _end)
+                    break;
+
+                boolean compress = (_bypassBlocks == 0);
+
+                if (length > 0 && compress != _compressing)
+                    break;
+
+                startBlock(compress);
+            }
+
+            if (_compressing) {
+                length += deflate(data, offset + length, max - length);
+            } else {
+                int count = _file.read(_position, data, offset + length,
+                                       (int)Math.min(max - length, _blockEnd - _position));
+
+                if (count <= 0)
+                    throw new EOFException();
+
+                _digest.update(data, offset + length, count);
+                _position += count;
+                length += count;
+            }
+        }
+
+        if (length == 0)
+            return false;
+
+        pkt.setPacketType(_compressing ? Packet.COMPRESSED_PAYLOAD_PACKET_TYPE
+                                       : Packet.PAYLOAD_PACKET_TYPE);
+        pkt.setPayloadDataSize(length);
+        _bytesOut += length;
+
+        return true;
+    }
+
+    // Bytes of the file taken so far, and bytes of payload made from them.
+    public long getBytesIn() {
+        return _bytesIn;
+    }
+
+    public long getBytesOut() {
+        return _bytesOut;
+    }
+
+    public void close() {
+        _deflater.end();
+    }
+
+    private boolean isBlockDone() {
+        return _compressing ? _drained : _position >= _blockEnd;
+    }
+
+    private void startBlock(boolean compress) throws IOException {
+
+        if (!compress)
+            _bypassBlocks--;
+
+        _compressing = compress;
+        _blockLength = (int)Math.min(BLOCK_SIZE, _end - _position);
+        _blockEnd = _position + _blockLength;
+        _bytesIn += _blockLength;
+
+        if (!compress)
+            return;
+
+        int count = 0;
+
+        while (count < _blockLength) {
+            int n = _file.read(_position + count, _block, count, _blockLength - count);
+
+            if (n <= 0)
+                throw new EOFException();
+
+            count += n;
+        }
+
+        _digest.update(_block, 0, _blockLength);
+        _position = _blockEnd;
+        _deflater.setInput(_block, 0, _blockLength);
+        _blockStartOut = _deflater.getBytesWritten();
+        _drained = false;
+    }
+
+    // Compresses as much of the block as fits, and flushes once all of it has
+    // been taken in.
+    private int deflate(byte[] dst, int offset, int length) {
+
+        if (!_deflater.needsInput())
+            return _deflater.deflate(dst, offset, length, Deflater.NO_FLUSH);
+
+        int count = _deflater.deflate(dst, offset, length, Deflater.SYNC_FLUSH);
+
+        // The flush is complete once it leaves room to spare.
+        if (count < length) {
+            _drained = true;
+
+            long out = _deflater.getBytesWritten() - _blockStartOut;
+
+            if (out * BYPASS_RATIO_DENOMINATOR > (long)_blockLength * BYPASS_RATIO_NUMERATOR)
+                _bypassBlocks = BYPASS_BLOCKS;
+        }
+
+        return count;
+    }
+}
+
+// Works out how to build part of a file from the receiver's copy of it, the
+// basis, given the signatures of the basis's blocks, and puts that into
+// payloads as it goes: runs of blocks the receiver has, and the bytes in
+// between. The file is scanned a byte at a time with the rolling checksum,
+// and looked up in a hash table of the blocks.
+class DeltaEncoder {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int BUFFER_SIZE = 1024 * 1024;
+
+    private FileSource _file;
+    private long _end;
+
+// The basis
+    private int _blockSize;
+    private int _blockCount;
+    private int[] _weak;
+    private long[] _strong;
+    private int[] _buckets;         // First block by weak checksum, -1 for none.
+    private int[] _nextBlock;       // Next block in the same bucket.
+    private BlockChecksum _checksum;
+
+// Scanning
+    private byte[] _buffer;
+    private long _bufferStart;      // Where _buffer starts in the file.
+    private int _bufferLength;
+    private long _position;         // Start of the block being looked at.
+    private long _literalStart;     // First byte neither sent nor matched.
+    private int _rollingWeak;
+    private boolean _rolling;       // _rollingWeak is for _position.
+    private int _matchBlock;        // Block found at _position, -1 for none.
+
+// Blocks matched one after another go out as one command.
+    private int _runBlock;
+    private int _runCount;
+
+    private StreamDigest _digest;   // Of the file, as it is matched or sent.
+    private long _copiedBytes;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public DeltaEncoder(FileSource file, long offset, long size, StreamDigest digest) {
+
+        _file = file;
+        _end = offset + size;
+
+        _blockSize = 0;
+        _blockCount = 0;
+        _checksum = new BlockChecksum();
+
+        _buffer = null;
+        _bufferStart = offset;
+        _bufferLength = 0;
+        _position = offset;
+        _literalStart = offset;
+        _rolling = false;
+        _matchBlock = -1;
+
+        _runBlock = 0;
+        _runCount = 0;
+
+        _digest = digest;
+        _copiedBytes = 0;
+    }
+
+    // Returns the number of blocks there will be signatures for.
+    public int setBasis(long basisSize, int blockSize) {
+
+        if (blockSize > 0 && basisSize > 0) {
+            _blockSize = blockSize;
+            _blockCount = (int)Math.min(Integer.MAX_VALUE, basisSize / blockSize);
+        }
+
+        _weak = new int[_blockCount];
+        _strong = new long[_blockCount];
+
+        return _blockCount;
+    }
+
+    // Takes a page of signatures, for blocks from firstBlock.
+    public void addSignatures(long firstBlock, Packet pkt) {
+
+        for (int i = 0; i < pkt.getSignatureCount() && firstBlock + i < _blockCount; i++) {
+            _weak[(int)firstBlock + i] = pkt.getWeakSignature(i);
+            _strong[(int)firstBlock + i] = pkt.getStrongSignature(i);
+        }
+    }
+
+    // Builds the hash table, once all the signatures are in.
+    public void start() {
+
+        int tableSize = Integer.highestOneBit(Math.max(1, _blockCount) * 2);
+
+        _buckets = new int[tableSize];
+        _nextBlock = new int[_blockCount];
+        Arrays.fill(_buckets, -1);
+
+        // Backwards, so that the first of identical blocks is found first.
+        for (int block = _blockCount - 1; block >= 0; block--) {
+            int bucket = bucket(_weak[block]);
+            _nextBlock[block] = _buckets[bucket];
+            _buckets[bucket] = block;
+        }
+
+        _buffer = new byte[Math.max(BUFFER_SIZE, _blockSize + 1)];
+    }
+
+    // Fills the payload of a packet whose type and sequence number have been
+    // set with up to max bytes of commands. Returns false once there is
+    // nothing left to send.
+    public boolean fill(Packet pkt, int max) throws IOException {
+
+        ByteBuffer out = pkt.getPayloadBuffer(max);
+        int start = out.position();
+
+        while (true) {
+            // Bytes before a match, or that no match was found for.
+            if (_literalStart < _position) {
+                if (!putRun(out) || !putLiteral(out))
+                    break;
+                continue;
+            }
+
+            if (_matchBlock >= 0) {
+                if (_runCount > 0 && _matchBlock != _runBlock + _runCount && !putRun(out))
+                    break;
+
+                if (_runCount == 0)
+                    _runBlock = _matchBlock;
+                _runCount++;
+
+                _digest.update(_buffer, (int)(_position - _bufferStart), _blockSize);
+
+                _matchBlock = -1;
+                _position += _blockSize;
+                _literalStart = _position;
+                _copiedBytes += _blockSize;
+                _rolling = false;
+                continue;
+            }
+
+            if (_position >= _end) {
+                putRun(out);
+                break;
+            }
+
+            find(max);
+        }
+
+        pkt.setPayloadDataSize(out.position() - start);
+
+        return out.position() > start;
+    }
+
+    // Bytes of the file that the receiver copies from its basis.
+    public long getCopiedBytes() {
+        return _copiedBytes;
+    }
+
+    // Looks for a block of the basis from _position on, and stops there if
+    // there is one, or once there is a packet's worth of bytes to send
+    // anyway.
+    private void find(int max) throws IOException {
+
+        long lastStart = _end - _blockSize;
+
+        if (_blockCount == 0 || _position > lastStart) {
+            _position = _end;
+            return;
+        }
+
+        while (true) {
+            // The block, and the byte after it to roll in.
+            int length = (int)Math.min(_blockSize + 1, _end - _position);
+
+            if (_position + length > _bufferStart + _bufferLength)
+                fillBuffer();
+
+            int offset = (int)(_position - _bufferStart);
+
+            if (!_rolling) {
+                _rollingWeak = BlockChecksum.weak(_buffer, offset, _blockSize);
+                _rolling = true;
+            }
+
+            _matchBlock = lookup(offset);
+
+            if (_matchBlock >= 0 || _position - _literalStart >= max)
+                return;
+
+            if (_position == lastStart) {
+                _position = _end;
+                return;
+            }
+
+            _rollingWeak = BlockChecksum.roll(_rollingWeak, _blockSize, _buffer[offset] & 0xFF,
+                                              _buffer[offset + _blockSize] & 0xFF);
+            _position++;
+        }
+    }
+
+    private void fillBuffer() throws IOException {
+
+        _bufferStart = _position;
+        _bufferLength = 0;
+
+        int length = (int)Math.min(_buffer.length, _end - _position);
+
+        while (_bufferLength < length) {
+            int count = _file.read(_bufferStart + _bufferLength, _buffer, _bufferLength,
+                                   length - _bufferLength);
+
+            if (count <= 0)
+                throw new EOFException();
+
+            _bufferLength += count;
+        }
+    }
+
+    // Returns the block of the basis that the block at offset in _buffer is
+    // the same as, or -1. The one after the last match is tried first, to
+    // keep runs going.
+    private int lookup(int offset) {
+
+        long strong = 0;
+        boolean haveStrong = false;
+
+        int expected = _runBlock + _runCount;
+
+        if (_runCount > 0 && expected < _blockCount && _weak[expected] == _rollingWeak) {
+            strong = _checksum.strong(_buffer, offset, _blockSize);
+            haveStrong = true;
+
+            if (_strong[expected] == strong)
+                return expected;
+        }
+
+        for (int block = _buckets[bucket(_rollingWeak)]; block >= 0; block = _nextBlock[block]) {
+            if (_weak[block] != _rollingWeak)
+                continue;
+
+            if (!haveStrong) {
+                strong = _checksum.strong(_buffer, offset, _blockSize);
+                haveStrong = true;
+            }
+
+            if (_strong[block] == strong)
+                return block;
+        }
+
+        return -1;
+    }
+
+    private int bucket(int weak) {
+        return (weak ^ (weak >>> 16) * 0x9E3B) & (_buckets.length - 1);
+    }
+
+    // Returns false if the run does not fit.
+    private boolean putRun(ByteBuffer out) {
+
+        if (_runCount == 0)
+            return true;
+
+        if (out.remaining() < 1 + Packet.getVarLongLength(_runBlock) + Packet.getVarLongLength(_runCount))
+            return false;
+
+        out.put(Packet.DELTA_COPY);
+        Packet.putVarLong(out, _runBlock);
+        Packet.putVarLong(out, _runCount);
+        _runCount = 0;
+
+        return true;
+    }
+
+    // Sends as much of the bytes before _position as fits. Returns false if
+    // not all of them did.
+    private boolean putLiteral(ByteBuffer out) throws IOException {
+
+        long pending = _position - _literalStart;
+        int room = out.remaining() - 1 - Packet.getVarLongLength(pending);
+
+        if (room <= 0)
+            return false;
+
+        int length = (int)Math.min(pending, room);
+
+        out.put(Packet.DELTA_LITERAL);
+        Packet.putVarLong(out, length);
+
+        int copied = 0;
+
+        while (copied < length) {
+            int count = _file.read(_literalStart + copied, out.array(),
+                                   out.arrayOffset() + out.position() + copied, length - copied);
+
+            if (count <= 0)
+                throw new EOFException();
+
+            copied += count;
+        }
+
+        _digest.update(out.array(), out.arrayOffset() + out.position(), length);
+        out.position(out.position() + length);
+        _literalStart += length;
+
+        return length == pending;
+    }
+}
+
+class Sender implements Runnable, TimeoutListener {
 
 // ***************************************************************************
 // Variables
 // ***************************************************************************
 
 // Socket stuff.
+    private int _port;
+    private InetAddress _address;
     private DatagramSocket _socket;
 
-// Packet to send.
-    private Packet _pkt;
+// Tells our packets apart from other transfers to the same receiver. Version
+// 1 has no room for it, so it is always 0 there.
+    private int _sessionId;
+
+// File stuff.
+    private FileSource _file;
+    private BatchSource _batch;     // Same as _file when sending a directory.
+
+    private long _totalFileSize;
+    private long _currFileSize;
+    private long _seqNo;
+    private String _fileName;
+
+    private long _rangeOffset;      // Part of the file to send, all of it
+    private long _rangeSize;        // unless setRange() says otherwise.
+
+// Resuming: nothing but the file header is sent until the receiver has said
+// how far it got last time, with the cumulative ACK and bitmap of its answer.
+    private boolean _resume;
+    private boolean _resuming;      // Still waiting for that answer.
+    private long _resumeSeqNo;
+    private boolean[] _resumeAcked; // Packets after _resumeSeqNo it already has.
+
+// Compressing: payloads come from the compressor instead of straight from
+// their place in the file.
+    private boolean _compress;
+    private PayloadCompressor _compressor;
+
+// Forward error correction: the payloads are taken in blocks of
+// _fecBlockSize, and each block is followed by a parity packet, which is sent
+// only once. 0 for none.
+    private int _fecBlockSize;
+    private SendTask _parityTask;
+    private long _parityBlock;      // Block the parity is being made for.
+    private long _parityEndSeqNo;   // Last payload in the parity.
+    private int _parityCount;       // Payloads in the parity.
+
+// Delta: nothing but the file header is sent until the signatures of the
+// receiver's copy have been fetched, a page per request, with up to
+// SIGNATURE_WINDOW requests out at a time. The payloads then say how to build
+// the file from that copy. The receiver holds on to a request until it has
+// signed that part of its copy, which can take a while for a large one, so a
+// request is only resent after SIGNATURE_TIMEOUT, to make up for loss.
+    private final static int SIGNATURE_WINDOW = 16;
+    private final static long SIGNATURE_TIMEOUT = 500;
+
+    private boolean _delta;
+    private DeltaEncoder _encoder;
+    private boolean _fetchingSignatures;
+    private SendTask[] _signatureTasks;     // By page % SIGNATURE_WINDOW.
+    private boolean[] _signaturePageDone;   // Same.
+    private long _signaturePageCount;       // 1 until the first page says.
+    private long _signatureBasePage;        // First page not yet answered.
+    private long _nextSignaturePage;
+
+// A batch lists its files in manifest packets before the payloads.
+    private long _dataStartSeqNo;   // Sequence number of the first payload.
+    private int _nextEntry;         // First file not yet in a manifest packet.
+
+// End-to-end check, sent with the termination packet.
+    private StreamDigest _digest;
+    private byte[] _skippedChunk;   // For chunks that are not sent, see digestChunks().
+    private boolean _verified;      // The receiver's digest matched.
+
+// Instrumentation
+    private TransferMetrics _metrics;
+    private long _statsInterval;    // Milliseconds between stats lines, 0 for none.
+
+    private boolean _done;
+
+// Sliding window
+    private long _baseSeqNo;        // Oldest unacknowledged sequence number.
+    private int _windowSize;        // Max number of packets in flight.
+
+// Resend a hole once this many packets beyond it have been acknowledged.
+    private final static int FAST_RETRANSMIT_THRESHOLD = 3;
+
+// Timer
+    private TimerWheel _sendTimer;
+    private RttEstimator _rtt;
+
+// Congestion control and pacing
+    private CongestionControl _cc;
+    private RateLimiter _rateLimiter;
+
+// Waits shorter than this are slept off instead of waiting on the socket.
+    private final static long PACING_SLEEP_THRESHOLD = 1000000;     // ns
+
+// Packets. One task and packet per window slot (seqNo % _windowSize), all
+// reused for the whole transfer.
+    private SendTask[] _sendTasks;
+    private boolean[] _inFlight;
+    private int _inFlightCount;
+
+    private SendTask _terminationTask;
+    private Packet _rcvPkt;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public Sender(String fileToOpen, String host, String port, String rcvFileName,
+                  int windowSize, byte version, long bitsPerSecond) {
+
+        // Open the socket to send.
+        try {
+            _address = InetAddress.getByName(host);
+            _port = Integer.parseInt(port);
+            _socket = new DatagramSocket();
+        } catch (UnknownHostException e) {
+            System.out.println(e.toString());
+        } catch (SocketException e) {
+            System.out.println(e.toString());
+        }
+
+        // Open the file, or every file under the directory.
+        try {
+            if (new File(fileToOpen).isDirectory()) {
+                _batch = new BatchSource(fileToOpen);
+                _file = _batch;
+            } else {
+                _file = new MappedFile(fileToOpen);
+            }
+
+            _totalFileSize = _file.size();
+            _fileName = rcvFileName;
+
+            _rangeOffset = 0;
+            _rangeSize = _totalFileSize;
+
+            //System.out.println("filesize = " + _totalFileSize);
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        _sessionId = (version == Packet.PROTOCOL_V1) ? 0 : ThreadLocalRandom.current().nextInt();
+
+        _seqNo = 0;
+        _baseSeqNo = 0;
+        _windowSize = windowSize;
+
+        _sendTimer = new TimerWheel();
+        _rtt = new RttEstimator();
+        _cc = new CongestionControl();
+        _rateLimiter = new RateLimiter(bitsPerSecond);
+
+        _sendTasks = new SendTask[windowSize];
+        _inFlight = new boolean[windowSize];
+        _inFlightCount = 0;
+
+        for (int i = 0; i < windowSize; i++)
+            _sendTasks[i] = new SendTask(_socket, makePacket(version), 0, this);
+
+        _terminationTask = new SendTask(_socket, makePacket(version), 0, this);
+        _parityTask = new SendTask(_socket, makePacket(version), 0, this);
+
+        _signatureTasks = new SendTask[SIGNATURE_WINDOW];
+        _signaturePageDone = new boolean[SIGNATURE_WINDOW];
+
+        for (int i = 0; i < SIGNATURE_WINDOW; i++)
+            _signatureTasks[i] = new SendTask(_socket, makePacket(version), 0, this);
+        _rcvPkt = new Packet();
+
+        _resume = false;
+        _resuming = false;
+        _resumeSeqNo = -1;
+        _resumeAcked = null;
+
+        _compress = false;
+        _compressor = null;
+
+        _delta = false;
+        _encoder = null;
+        _fetchingSignatures = false;
+        _signaturePageCount = 1;
+        _signatureBasePage = 0;
+        _nextSignaturePage = 0;
+
+        _fecBlockSize = 0;
+        _parityBlock = -1;
+        _parityEndSeqNo = -1;
+        _parityCount = 0;
+
+        _dataStartSeqNo = 1;
+        _nextEntry = 0;
+
+        _digest = null;
+        _skippedChunk = null;
+        _verified = false;
+
+        _metrics = null;
+        _statsInterval = 0;
+
+        if (_batch != null) {
+            int capacity = _terminationTask.getPacket().getManifestCapacity();
+            _dataStartSeqNo += _batch.getManifestPacketCount(capacity);
+        }
+    }
+
+    // Main update function.
+    public void run() {
+
+        Packet sendPkt = null, rcvPkt = _rcvPkt;
+
+        // Created here, to measure the time of the thread that runs it.
+        _metrics = new TransferMetrics("Sender", (_rangeSize == _totalFileSize)
+                                                 ? _fileName : _fileName + " from " + _rangeOffset);
+        _metrics.setRateLimiter(_rateLimiter);
+        _metrics.register();
+
+        if (_statsInterval > 0)
+            _metrics.startStats(_statsInterval);
+
+        _digest = new StreamDigest(getChunkSize(_terminationTask.getPacket()));
+
+        if (_compress)
+            _compressor = new PayloadCompressor(_file, _rangeOffset, _rangeSize, _digest);
+
+        if (_delta) {
+            _encoder = new DeltaEncoder(_file, _rangeOffset, _rangeSize, _digest);
+            _fetchingSignatures = true;
+        }
+
+        do {
+            long pacingDelay = 0;
+
+            // Once the receiver has the file header.
+            if (_fetchingSignatures && _baseSeqNo > 0)
+                requestSignatures();
+
+            // Fill up the window with new packets, as far as the congestion
+            // window and the rate limit allow.
+            while (!_done && _seqNo < _baseSeqNo + _windowSize
+                    && _inFlightCount < _cc.getWindow() && !((_resuming || _fetchingSignatures) && _seqNo > 0)) {
+
+                // Already there from last time.
+                if (isResumeAcked(_seqNo)) {
+                    skipPacket();
+                    continue;
+                }
+
+                pacingDelay = _rateLimiter.getDelay();
+
+                if (pacingDelay >= PACING_SLEEP_THRESHOLD)
+                    break;
+                if (pacingDelay > 0)
+                    LockSupport.parkNanos(pacingDelay);
+                pacingDelay = 0;
+
+                sendPkt = _sendTasks[slot(_seqNo)].getPacket();
+                sendPkt.reset();
+
+                if (_seqNo == 0 && _batch != null) {
+                    makeBatchHeaderPacket(sendPkt);
+                } else if (_seqNo == 0) {
+                    makeFileHeaderPacket(sendPkt);
+                } else if (_seqNo < _dataStartSeqNo) {
+                    makeManifestPacket(sendPkt);
+                } else {
+                    _done = makePayloadPacket(sendPkt);
+                }
+
+                if (_done) {
+                    // What there is of the last block.
+                    if (_fecBlockSize > 0)
+                        sendParityPacket();
+                    break;
+                }
+
+                //System.out.println("seqNo="+_seqNo);
+                startSendPacket(_sendTasks[slot(_seqNo)]);
+
+                if (_fecBlockSize > 0 && _seqNo >= _dataStartSeqNo)
+                    addParity(sendPkt);
+
+                _seqNo++;
+            }
+
+            _metrics.setWindow(_inFlightCount, Math.min(_windowSize, _cc.getWindow()));
+
+            // Everything has been sent and acknowledged.
+            if (_done && _inFlightCount == 0)
+                break;
+
+            // Wait for ACK, or until the next packet needs resending or may
+            // be sent.
+            long timeout = _sendTimer.getTimeout();
+
+            if (pacingDelay > 0) {
+                long pacingMillis = (pacingDelay + 999999) / 1000000;
+                timeout = (timeout < 0) ? pacingMillis : Math.min(timeout, pacingMillis);
+            }
+
+            rcvPkt.reset();
+
+            if (receivePacket(rcvPkt, timeout) && rcvPkt.getSessionId() == _sessionId) {
+                switch (rcvPkt.getPacketType()) {
+                    case Packet.RESPONSE_PACKET_TYPE: acknowledgeResponse(rcvPkt); break;
+                    case Packet.SACK_PACKET_TYPE: acknowledgePackets(rcvPkt); break;
+                    case Packet.SIGNATURE_PACKET_TYPE: addSignatures(rcvPkt); break;
+                }
+            }
+
+            _sendTimer.advance();
+        } while (!_done || _inFlightCount > 0);
+
+        // Send a file termination packet.
+        boolean terminationSignalSent = false;
+        Packet tPkt = _terminationTask.getPacket();
+        makeTerminationPacket(tPkt);
+
+        startSendPacket(_terminationTask);
 
-// ***************************************************************************
-// Functions
-// ***************************************************************************
+        while (!terminationSignalSent) {
+            rcvPkt.reset();
 
-    // Constructor.
-    public SendTask(DatagramSocket socket, Packet pkt) {
-        _socket = socket;
-        _pkt = pkt;
-    }
+            if (receivePacket(rcvPkt, _sendTimer.getTimeout())
+                    && rcvPkt.getSessionId() == _sessionId
+                    && rcvPkt.getPacketType() == Packet.RESPONSE_PACKET_TYPE
+                    && rcvPkt.getSeqNo() == -1) {
+                terminationSignalSent = true;
+                _verified = rcvPkt.getResponse() != Packet.MSG_NAK;
+            }
+
+            _sendTimer.advance();
+        }
+
+        _sendTimer.cancel(_terminationTask);
+
+        if (!_verified)
+            System.out.println("The receiver could not confirm that its copy of " + _fileName
+                               + " matches what was sent.");
+
+        if (_compressor != null) {
+            System.out.println("Compressed " + _compressor.getBytesIn() + " bytes to "
+                               + _compressor.getBytesOut());
+            _compressor.close();
+        }
+
+        if (_encoder != null)
+            System.out.println("Copied " + _encoder.getCopiedBytes() + " of " + _rangeSize
+                               + " bytes from the receiver's copy");
+
+        String summary = _metrics.finish();
+
+        if (_statsInterval > 0)
+            System.out.println(summary);
 
-    // Thing to do every interval.
-    public void run() {
         try {
-            _socket.send(_pkt.create());
+            _file.close();
         } catch (IOException e) {
             System.out.println(e.toString());
         }
     }
-}
 
-class Sender implements Runnable {
+    // Applies a SACK: acknowledges everything it covers, and resends each
+    // hole once FAST_RETRANSMIT_THRESHOLD packets above it have been
+    // acknowledged (DupThresh, as in RFC 6675). Packets are counted rather
+    // than SACKs, as the receiver repeats its SACK while it waits.
+    private void acknowledgePackets(Packet sackPkt) {
 
-// ***************************************************************************
-// Variables
-// ***************************************************************************
+        if (_resuming && sackPkt.isAcked(0)) {
+            resume(sackPkt);
+            return;
+        }
 
-// Socket stuff.
-    private int _port;
-    private InetAddress _address;
-    private DatagramSocket _socket;
+        long highestSeqNo = Math.min(sackPkt.getHighestAckedSeqNo(), _seqNo - 1);
+        long baseSeqNo = _baseSeqNo;
+        int inFlightCount = _inFlightCount;
+        int ackedAbove = 0;
 
-// File stuff.
-    private FileInputStream _fis;
-    private BufferedInputStream _bis;
+        for (long seqNo = highestSeqNo; seqNo >= baseSeqNo; seqNo--) {
+            if (sackPkt.isAcked(seqNo)) {
+                acknowledgePacket(seqNo);
+                ackedAbove++;
+                continue;
+            }
 
-    private long _totalFileSize;
-    private long _currFileSize;
-    private long _seqNo;
-    private String _fileName;
+            SendTask sendTask = getInFlightTask(seqNo);
 
-    private boolean _done;
+            if (sendTask != null && ackedAbove >= FAST_RETRANSMIT_THRESHOLD
+                    && !sendTask.isFastRetransmitted()) {
+                sendTask.setFastRetransmitted();
+                _cc.onLoss(seqNo, _seqNo, _inFlightCount, false);
+                sendTask.send();
+                countSent(sendTask.getPacket(), true);
+                _sendTimer.schedule(sendTask, sendTask.getInterval());
+            }
+        }
 
-// Timer
-    private Timer _sendTimer;
-    private TimerTask _sendTask;
+        // Nothing new, so one of ours came twice or a SACK was repeated.
+        if (_inFlightCount == inFlightCount)
+            _metrics.addDuplicate();
+    }
 
+    private void acknowledgeResponse(Packet rcvPkt) {
 
-// ***************************************************************************
-// Functions
-// ***************************************************************************
+        if (rcvPkt.getResponse() == Packet.MSG_DUPLICATE)
+            _cc.onDuplicate(rcvPkt.getSeqNo());
+        else
+            acknowledgePacket(rcvPkt.getSeqNo());
+    }
 
-    // Constructor
-    public Sender(String fileToOpen, String host, String port, String rcvFileName) {
+    // Marks a packet as received and slides the window past any
+    // acknowledged packets at its front.
+    private void acknowledgePacket(long seqNo) {
 
-        // Open the socket to send.
-        try {
-            _address = InetAddress.getByName(host);
-            _port = Integer.parseInt(port);
-            _socket = new DatagramSocket();
-        } catch (UnknownHostException e) {
-            System.out.println(e.toString());
-        } catch (SocketException e) {
-            System.out.println(e.toString());
+        SendTask sendTask = getInFlightTask(seqNo);
+
+        // Duplicate or stale ACK.
+        if (sendTask == null)
+            return;
+
+        // Karn's algorithm: a resent packet's ACK could be for any copy.
+        if (sendTask.getSendCount() == 1) {
+            long rtt = System.nanoTime() - sendTask.getLastSentTime();
+            _rtt.addSample(rtt);
+            _metrics.addRtt(rtt);
         }
 
-        // Open the file.
-        try {
-            _fis = new FileInputStream(fileToOpen);
-            _bis = new BufferedInputStream(_fis);
+        _metrics.addDelivered(sendTask.getPacket().getPayloadDataSize());
 
-            _totalFileSize = _fis.available();
-            _fileName = rcvFileName;
+        _cc.onAck();
 
-            //System.out.println("filesize = " + _totalFileSize);
-        } catch (FileNotFoundException e) {
-            System.out.println(e.toString());
-        } catch (IOException e) {
-            System.out.println(e.toString());
+        _sendTimer.cancel(sendTask);
+        _inFlight[slot(seqNo)] = false;
+        _inFlightCount--;
+
+        while (_baseSeqNo < _seqNo && !_inFlight[slot(_baseSeqNo)])
+            _baseSeqNo++;
+    }
+
+    // The answer to a resuming file header. Everything up to its cumulative
+    // ACK is skipped, and so is anything in its bitmap, as it comes up.
+    private void resume(Packet sackPkt) {
+
+        _resuming = false;
+        acknowledgePacket(0);
+
+        _resumeSeqNo = sackPkt.getSeqNo();
+        _resumeAcked = new boolean[(int)Math.max(0, sackPkt.getHighestAckedSeqNo() - _resumeSeqNo)];
+
+        for (int i = 0; i < _resumeAcked.length; i++)
+            _resumeAcked[i] = sackPkt.isAcked(_resumeSeqNo + 1 + i);
+
+        // Nothing has been sent past the file header yet.
+        if (_resumeSeqNo >= _seqNo) {
+            digestChunks(_seqNo, _resumeSeqNo + 1);
+            _seqNo = _resumeSeqNo + 1;
+            _baseSeqNo = _seqNo;
         }
 
-        _seqNo = 0;
-        _sendTimer = new Timer();
+        if (_resumeSeqNo > 0)
+            System.out.println("Resuming after packet " + _resumeSeqNo);
     }
 
-    // Main update function.
-    public void run() {
+    private boolean isResumeAcked(long seqNo) {
 
-        Packet sendPkt = null, rcvPkt = null;
-        boolean sendingSuccessful = true;
+        if (_resumeAcked == null || seqNo <= _resumeSeqNo)
+            return false;
 
-        do {
-            // Make packet first.
-            if (sendingSuccessful) {
-                sendPkt = new Packet(_address, _port);
+        long index = seqNo - _resumeSeqNo - 1;
 
-                if (_seqNo == 0) {
-                    makeFileHeaderPacket(sendPkt);
-                } else {
-                    _done = makePayloadPacket(sendPkt);
-                }
-                sendingSuccessful = false;
-            }
+        return index < _resumeAcked.length && _resumeAcked[(int)index];
+    }
 
-            if (_done) {
-                //System.out.println("DONE");
-                break;
-            }
+    // Passes over a packet without sending it, as if it had been acknowledged.
+    private void skipPacket() {
 
-            //System.out.println("seqNo="+_seqNo);
+        digestChunks(_seqNo, _seqNo + 1);
+        _seqNo++;
 
-            //sendPacket(sendPkt);
-            startSendPacket(sendPkt);
+        while (_baseSeqNo < _seqNo && !_inFlight[slot(_baseSeqNo)])
+            _baseSeqNo++;
+    }
 
-            // Wait for ACK
-            rcvPkt = new Packet();
-            receivePacket(rcvPkt);
+    // Target rate in bits per second, 0 for unlimited. May be changed while
+    // the transfer is running.
+    public long getRate() {
+        return _rateLimiter.getRate();
+    }
 
-            stopSendPacket();
+    public void setRate(long bitsPerSecond) {
+        _rateLimiter.setRate(bitsPerSecond);
+    }
 
-            if (rcvPkt.verify() && rcvPkt.getSeqNo() == _seqNo) {
-                //System.out.println(rcvPkt.getSeqNo());
-                _seqNo++;
-                sendingSuccessful = true;
-            }
+    // Sends only rangeSize bytes from rangeOffset, for one of several streams
+    // sending the file in parallel. Must be called before run().
+    public void setRange(long rangeOffset, long rangeSize) {
+        _rangeOffset = rangeOffset;
+        _rangeSize = rangeSize;
+    }
 
-            // Sleep the thread to prevent overloading the pipeline.
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                System.out.println(e.toString());
-            }
-        } while (!_done);
+    // Asks the receiver to carry on from where an earlier, interrupted
+    // transfer of the same file stopped. Must be called before run().
+    public void setResume(boolean resume) {
+        _resume = resume;
+        _resuming = resume;
+    }
 
-        // Send a file termination packet.
-        boolean terminationSignalSent = false;
-        Packet tPkt = new Packet(_address, _port);
-        makeTerminationPacket(tPkt);
+    // Sends the payloads compressed where that makes them smaller. Not for
+    // resuming transfers. Must be called before run().
+    public void setCompress(boolean compress) {
+        _compress = compress;
+    }
 
-        while (!terminationSignalSent) {
-            //sendPacket(tPkt);
-            startSendPacket(tPkt);
+    // Sends a parity packet after every blockSize payloads, 0 for none. Must
+    // be called before run().
+    public void setFecBlockSize(int blockSize) {
+        _fecBlockSize = blockSize;
+    }
 
-            rcvPkt = new Packet();
-            receivePacket(rcvPkt);
-            stopSendPacket();
+    // Sends only what the receiver's copy of the file lacks. Not for
+    // resuming, compressed or parallel transfers. Must be called before run().
+    public void setDelta(boolean delta) {
+        _delta = delta;
+    }
 
-            if (rcvPkt.verify() && rcvPkt.getSeqNo() == -1)
-                terminationSignalSent = true;
+    // Prints the metrics every intervalMillis while running, and once more
+    // at the end, with the CPU time taken. 0 for never.
+    public void setStatsInterval(long intervalMillis) {
+        _statsInterval = intervalMillis;
+    }
+
+    // Whether the receiver found what it got to be what was sent. Only known
+    // once run() is over.
+    public boolean isVerified() {
+        return _verified;
+    }
+
+    public CongestionControl getCongestionControl() {
+        return _cc;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return _rtt;
+    }
+
+    private Packet makePacket(byte version) {
+        Packet pkt = new Packet(_address, _port);
+        pkt.setVersion(version);
+        pkt.setSessionId(_sessionId);
+
+        return pkt;
+    }
+
+    private int slot(long seqNo) {
+        return (int)(seqNo % _windowSize);
+    }
+
+    // Payloads leave room for the parity header when they may be rebuilt
+    // from parity.
+    private int getChunkSize(Packet pkt) {
+        return (_fecBlockSize > 0) ? pkt.getMaxProtectedDataSize() : pkt.getMaxPayloadDataSize();
+    }
+
+    private SendTask getInFlightTask(long seqNo) {
+
+        if (seqNo < _baseSeqNo || seqNo >= _seqNo || !_inFlight[slot(seqNo)])
+            return null;
+
+        return _sendTasks[slot(seqNo)];
+    }
+
+    // Called by the timer just before a packet is resent.
+    public void onTimeout(SendTask task) {
+
+        if (task != _terminationTask
+                && task.getPacket().getPacketType() != Packet.SIGNATURE_REQUEST_PACKET_TYPE)
+            _cc.onLoss(task.getPacket().getSeqNo(), _seqNo, _inFlightCount, true);
+
+        // Resends count against the rate limit too. The task sends the packet
+        // right after this.
+        countSent(task.getPacket(), true);
+
+        // Exponential backoff for this packet until it gets through. Every
+        // packet has its own timer, so the estimate itself is left alone and
+        // keeps following the samples from the packets that do get through.
+        task.setInterval(Math.min(RttEstimator.MAX_RTO, task.getInterval() * 2));
+    }
+
+    // Sends the task's packet now, and keeps resending it until it is
+    // acknowledged.
+    private void startSendPacket(SendTask sendTask) {
+        sendTask.reset(_rtt.getTimeout());
+
+        if (sendTask != _terminationTask) {
+            _inFlight[slot(sendTask.getPacket().getSeqNo())] = true;
+            _inFlightCount++;
         }
+
+        sendTask.send();
+        countSent(sendTask.getPacket(), false);
+        _sendTimer.schedule(sendTask, sendTask.getInterval());
     }
 
-    private void startSendPacket(Packet pkt) {
-        _sendTimer = new Timer();
-        _sendTask = new SendTask(_socket, pkt);
-        _sendTimer.schedule(_sendTask, 0, 50);
+    private void makeBatchHeaderPacket(Packet pkt) {
+
+        pkt.setPacketType(Packet.BATCH_HEADER_PACKET_TYPE);
+        pkt.setSeqNo(_seqNo);
+        pkt.setTotalFileSize(_totalFileSize);
+        pkt.setFileName(_fileName);
+        pkt.setEntryCount(_batch.getEntryCount());
+        pkt.setManifestPacketCount((int)(_dataStartSeqNo - 1));
+        pkt.setFlags((_compress ? Packet.FLAG_COMPRESSED : 0) | Packet.FLAG_DIGEST);
+        pkt.setFecBlockSize(_fecBlockSize);
     }
 
-    private void stopSendPacket() {
-        _sendTimer.cancel();
-        _sendTimer = null;
+    // Manifest packets are made in sequence, each listing the files after
+    // the last one.
+    private void makeManifestPacket(Packet pkt) {
+
+        pkt.setPacketType(Packet.MANIFEST_PACKET_TYPE);
+        pkt.setSeqNo(_seqNo);
+        _nextEntry = _batch.fillManifest(pkt, _nextEntry);
     }
 
     private void makeFileHeaderPacket(Packet pkt) {
@@ -186,15 +1588,36 @@ class Sender implements Runnable {
         pkt.setSeqNo(_seqNo);
         pkt.setTotalFileSize(_totalFileSize);
         pkt.setFileName(_fileName);
+        pkt.setRange(_rangeOffset, _rangeSize);
+        pkt.setFlags((_resume ? Packet.FLAG_RESUME : 0) | (_compress ? Packet.FLAG_COMPRESSED : 0)
+                     | (_delta ? Packet.FLAG_DELTA : 0) | Packet.FLAG_DIGEST);
+        pkt.setFecBlockSize(_fecBlockSize);
     }
 
     private boolean makePayloadPacket(Packet pkt) {
 
-        byte[] payloadData = new byte[Packet.PAYLOAD_MAX_DATA_SIZE];
-        long payloadDataSize = 0;
+        if (_compressor != null)
+            return makeCompressedPayloadPacket(pkt);
+
+        if (_encoder != null)
+            return makeDeltaPayloadPacket(pkt);
+
+        // Every chunk but the last is full, since the receiver places chunks
+        // in the file by sequence number.
+        int maxPayloadDataSize = getChunkSize(pkt);
+        long offset = (_seqNo - _dataStartSeqNo) * maxPayloadDataSize;
+        int length = (int)Math.max(0, Math.min(maxPayloadDataSize, _rangeSize - offset));
+        int payloadDataSize = 0;
+
+        // The sequence number goes first, since where the payload starts can
+        // depend on it.
+        pkt.setPacketType(Packet.PAYLOAD_PACKET_TYPE);
+        pkt.setSeqNo(_seqNo);
 
+        // Read straight into the packet.
         try {
-            payloadDataSize = _bis.read(payloadData);
+            payloadDataSize = _file.read(_rangeOffset + offset, pkt.getData(), pkt.getPayloadOffset(),
+                                         length);
             //System.out.println("payloadDataSize="+payloadDataSize);
         } catch (IOException e) {
             System.out.println(e.toString());
@@ -203,18 +1626,189 @@ class Sender implements Runnable {
         if (payloadDataSize <= 0)
             return true;
 
-        pkt.setPacketType(Packet.PAYLOAD_PACKET_TYPE);
-        pkt.setSeqNo(_seqNo);
         pkt.setPayloadDataSize(payloadDataSize);
-        pkt.setPayloadData(payloadData);
+        _digest.update(pkt.getData(), pkt.getPayloadOffset(), payloadDataSize);
 
         return false;
     }
 
+    private boolean makeDeltaPayloadPacket(Packet pkt) {
+
+        pkt.setPacketType(Packet.PAYLOAD_PACKET_TYPE);
+        pkt.setSeqNo(_seqNo);
+
+        try {
+            return !_encoder.fill(pkt, getChunkSize(pkt));
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        return true;
+    }
+
+    // Asks for the next pages of signatures, as far as the window allows.
+    // Each request is resent until its page arrives, on its own timeout.
+    private void requestSignatures() {
+
+        while (_nextSignaturePage < _signaturePageCount
+                && _nextSignaturePage < _signatureBasePage + SIGNATURE_WINDOW) {
+            SendTask task = _signatureTasks[(int)(_nextSignaturePage % SIGNATURE_WINDOW)];
+
+            Packet pkt = task.getPacket();
+            pkt.reset();
+            pkt.setPacketType(Packet.SIGNATURE_REQUEST_PACKET_TYPE);
+            pkt.setSeqNo(_nextSignaturePage);
+
+            task.reset(Math.max(_rtt.getTimeout(), SIGNATURE_TIMEOUT));
+            task.send();
+            countSent(pkt, false);
+            _sendTimer.schedule(task, task.getInterval());
+
+            _nextSignaturePage++;
+        }
+    }
+
+    // The first page also says how many there are.
+    private void addSignatures(Packet pkt) {
+
+        long page = pkt.getSeqNo();
+        int slot = (int)(page % SIGNATURE_WINDOW);
+
+        if (!_fetchingSignatures || page < _signatureBasePage || page >= _nextSignaturePage
+                || _signaturePageDone[slot])
+            return;
+
+        int capacity = pkt.getMaxSignatureCount();
+
+        if (page == 0) {
+            int blockCount = _encoder.setBasis(pkt.getBasisSize(), pkt.getBlockSize());
+            _signaturePageCount = (blockCount + capacity - 1) / capacity;
+        }
+
+        _encoder.addSignatures(page * capacity, pkt);
+
+        _sendTimer.cancel(_signatureTasks[slot]);
+        _signaturePageDone[slot] = true;
+
+        while (_signatureBasePage < _nextSignaturePage
+                && _signaturePageDone[(int)(_signatureBasePage % SIGNATURE_WINDOW)]) {
+            _signaturePageDone[(int)(_signatureBasePage % SIGNATURE_WINDOW)] = false;
+            _signatureBasePage++;
+        }
+
+        if (_signatureBasePage >= _signaturePageCount) {
+            _fetchingSignatures = false;
+            _encoder.start();
+        }
+    }
+
+    // XORs a payload that has just been sent into the parity of its block,
+    // and sends the parity after the last payload of the block.
+    private void addParity(Packet pkt) {
+
+        Packet parityPkt = _parityTask.getPacket();
+        long index = _seqNo - _dataStartSeqNo;
+
+        // Whatever was left of a block with payloads skipped is dropped.
+        if (index / _fecBlockSize != _parityBlock) {
+            _parityBlock = index / _fecBlockSize;
+            _parityCount = 0;
+
+            parityPkt.reset();
+            parityPkt.setPacketType(Packet.FEC_PARITY_PACKET_TYPE);
+            parityPkt.setSeqNo(_dataStartSeqNo + _parityBlock * _fecBlockSize);
+
+            int offset = parityPkt.getPayloadOffset();
+            Arrays.fill(parityPkt.getData(), offset, offset + parityPkt.getMaxParityDataSize(), (byte)0);
+        }
+
+        byte[] parity = parityPkt.getData();
+        int parityOffset = parityPkt.getPayloadOffset();
+        byte[] data = pkt.getData();
+        int offset = pkt.getPayloadOffset();
+        int length = (int)pkt.getPayloadDataSize();
+
+        for (int i = 0; i < length; i++)
+            parity[parityOffset + i] ^= data[offset + i];
+
+        parityPkt.setPayloadDataSize(Math.max(parityPkt.getPayloadDataSize(), length));
+        parityPkt.setParityType((byte)(parityPkt.getParityType() ^ (pkt.getPacketType() / 100)));
+        parityPkt.setParityLength((short)(parityPkt.getParityLength() ^ length));
+
+        _parityEndSeqNo = _seqNo;
+        _parityCount++;
+
+        if (index % _fecBlockSize == _fecBlockSize - 1)
+            sendParityPacket();
+    }
+
+    // Only a parity of every payload from the start of the block is any use.
+    private void sendParityPacket() {
+
+        Packet parityPkt = _parityTask.getPacket();
+
+        if (_parityCount == 0 || _parityCount != _parityEndSeqNo - parityPkt.getSeqNo() + 1)
+            return;
+
+        parityPkt.setBlockLength(_parityCount);
+        _parityCount = 0;
+
+        _parityTask.send();
+        countSent(parityPkt, false);
+    }
+
+    // Payloads follow each other in sequence, so retransmissions resend the
+    // packet as it was made.
+    private boolean makeCompressedPayloadPacket(Packet pkt) {
+
+        pkt.setSeqNo(_seqNo);
+
+        try {
+            return !_compressor.fill(pkt, getChunkSize(pkt));
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        return true;
+    }
+
     private void makeTerminationPacket(Packet pkt) {
 
         pkt.setPacketType(Packet.TERMINATION_PACKET_TYPE);
         pkt.setSeqNo(Packet.TERMINATION_SEQUENCE_NO);
+        pkt.setDigest(_digest.digest());
+    }
+
+    // Reads the chunks of payloads from fromSeqNo up to toSeqNo into the
+    // digest, for those the receiver already has from an earlier transfer.
+    // Payloads are sent in order otherwise, and read as they are made.
+    private void digestChunks(long fromSeqNo, long toSeqNo) {
+
+        int chunkSize = getChunkSize(_terminationTask.getPacket());
+
+        if (_skippedChunk == null)
+            _skippedChunk = new byte[chunkSize];
+
+        for (long seqNo = Math.max(fromSeqNo, _dataStartSeqNo); seqNo < toSeqNo; seqNo++) {
+            long offset = (seqNo - _dataStartSeqNo) * chunkSize;
+            int length = (int)Math.max(0, Math.min(chunkSize, _rangeSize - offset));
+
+            try {
+                int count = _file.read(_rangeOffset + offset, _skippedChunk, 0, length);
+                _digest.update(_skippedChunk, 0, count);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+    }
+
+    // Counts a packet that has just been sent against the rate limit, and
+    // in the metrics.
+    private void countSent(Packet pkt, boolean retransmit) {
+        int length = pkt.create().getLength();
+
+        _rateLimiter.consume(length);
+        _metrics.addSent(length, retransmit);
     }
 
     private void sendPacket(Packet pkt) {
@@ -225,11 +1819,24 @@ class Sender implements Runnable {
         }
     }
 
-    private void receivePacket(Packet pkt) {
+    // Waits up to timeout milliseconds (forever if negative) for a packet.
+    // Returns true if a packet arrived intact before the timeout.
+    private boolean receivePacket(Packet pkt, long timeout) {
         try {
+            _socket.setSoTimeout(timeout < 0 ? 0 : (int)Math.max(1, timeout));
             _socket.receive(pkt.getPacket());
+            _metrics.addReceived(pkt.getPacket().getLength());
+
+            if (pkt.verify())
+                return true;
+
+            _metrics.addCorrupt();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return false;
         } catch (IOException e) {
             System.out.println(e.toString());
+            return false;
         }
     }
 }
@@ -237,17 +1844,153 @@ class Sender implements Runnable {
 class FileSender {
 
     private final static String HOSTNAME = "localhost";
+    private final static int DEFAULT_WINDOW_SIZE = 64;
 
     public static void main(String[] args) {
-        // Check if the number of command line argument is 3
-        if (args.length != 3) {
-            System.out.println("Usage: java FileSender <path/filename> "
-                                   + "<unreliNetPort> <rcvFileName>");
+        // Check if there are at least 3 command line arguments, followed by
+        // options.
+        if (args.length < 3) {
+            printUsage();
+        }
+
+        int windowSize = DEFAULT_WINDOW_SIZE;
+        int version = Packet.PROTOCOL_V3;
+        double rateMbps = 0;
+        int streams = 1;
+        boolean resume = false;
+        boolean compress = false;
+        int fecBlockSize = 0;
+        boolean delta = false;
+        double statsSeconds = 0;
+
+        for (int i = 3; i < args.length; i++) {
+            switch (args[i]) {
+                case "-window": windowSize = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-version": version = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-rate": rateMbps = Double.parseDouble(optionValue(args, ++i)); break;
+                case "-streams": streams = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-resume": resume = true; break;
+                case "-compress": compress = true; break;
+                case "-delta": delta = true; break;
+                case "-fec": fecBlockSize = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-stats": statsSeconds = Double.parseDouble(optionValue(args, ++i)); break;
+                default: printUsage();
+            }
+        }
+
+        if (windowSize < 1 || version < Packet.PROTOCOL_V1 || version > Packet.PROTOCOL_V3
+                || rateMbps < 0 || streams < 1
+                || fecBlockSize < 0 || fecBlockSize > Packet.MAX_FEC_BLOCK_SIZE || statsSeconds < 0)
+            printUsage();
+
+        if (streams > 1 && new File(args[0]).isDirectory()) {
+            System.out.println("Directories are sent in one stream.");
+            streams = 1;
+        }
+
+        if (delta && new File(args[0]).isDirectory()) {
+            System.out.println("Directories are not sent as deltas.");
+            delta = false;
+        }
+
+        if (delta && (streams > 1 || compress || resume)) {
+            System.out.println("Delta transfers are sent in one stream, uncompressed and from the start.");
+            streams = 1;
+            compress = false;
+            resume = false;
+        }
+
+        if (resume && compress) {
+            System.out.println("Compressed transfers cannot be resumed.");
+            resume = false;
+        }
+
+        if (streams == 1) {
+            Sender program = new Sender(args[0], HOSTNAME, args[1], args[2],
+                                        windowSize, (byte)version, (long)(rateMbps * 1000000));
+            program.setResume(resume);
+            program.setCompress(compress);
+            program.setFecBlockSize(fecBlockSize);
+            program.setDelta(delta);
+            program.setStatsInterval((long)(statsSeconds * 1000));
+
+            program.run();
+
+            if (!program.isVerified())
+                System.exit(1);
+        } else if (!sendStreams(args, windowSize, (byte)version, (long)(rateMbps * 1000000),
+                                streams, resume, compress, fecBlockSize,
+                                (long)(statsSeconds * 1000))) {
             System.exit(1);
         }
+    }
+
+    private static String optionValue(String[] args, int i) {
+        if (i >= args.length)
+            printUsage();
+
+        return args[i];
+    }
+
+    // Splits the file into one range per stream, and sends them all at the
+    // same time, each on its own thread and socket with its own session. The
+    // rate limit is shared out between them. Returns false unless every
+    // stream got through intact.
+    private static boolean sendStreams(String[] args, int windowSize, byte version,
+                                       long bitsPerSecond, int streams, boolean resume,
+                                       boolean compress, int fecBlockSize, long statsInterval) {
+
+        long fileSize = 0;
+
+        try {
+            fileSize = Files.size(Paths.get(args[0]));
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+
+        // No empty ranges.
+        streams = (int)Math.max(1, Math.min(streams, fileSize));
+        long rangeSize = (fileSize + streams - 1) / streams;
+
+        Thread[] threads = new Thread[streams];
+        Sender[] programs = new Sender[streams];
+
+        for (int i = 0; i < streams; i++) {
+            long rangeOffset = i * rangeSize;
+
+            Sender program = new Sender(args[0], HOSTNAME, args[1], args[2],
+                                        windowSize, version, bitsPerSecond / streams);
+            program.setRange(rangeOffset, Math.min(rangeSize, fileSize - rangeOffset));
+            program.setResume(resume);
+            program.setCompress(compress);
+            program.setFecBlockSize(fecBlockSize);
+            program.setStatsInterval(statsInterval);
+
+            programs[i] = program;
+            threads[i] = new Thread(program, "Stream " + i);
+            threads[i].start();
+        }
+
+        boolean verified = true;
+
+        for (int i = 0; i < streams; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                System.out.println(e.toString());
+            }
+
+            verified &= programs[i].isVerified();
+        }
 
-        Sender program = new Sender(args[0], HOSTNAME, args[1], args[2]);
+        return verified;
+    }
 
-        program.run();
+    private static void printUsage() {
+        System.out.println("Usage: java FileSender <path/filename|directory> "
+                               + "<unreliNetPort> <rcvFileName> [-window <size>] "
+                               + "[-version <1|2|3>] [-rate <Mbit/s>] [-streams <count>] [-resume] "
+                               + "[-compress] [-fec <blockSize>] [-delta] [-stats <seconds>]");
+        System.exit(1);
     }
 }
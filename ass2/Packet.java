@@ -2,7 +2,12 @@
 import java.net.*;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.BufferUnderflowException;
 import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 class Packet {
 
@@ -13,27 +18,86 @@ class Packet {
 // Packet constants
     private final static int PACKET_SIZE = 1000;
     private final static int CHECKSUM_BYTE_LENGTH = 8;          // long
+    private final static int VERSION_BYTE_LENGTH = 1;           // byte
+    private final static int CRC32C_BYTE_LENGTH = 4;            // int
+    private final static int SESSION_ID_BYTE_LENGTH = 4;        // int
     private final static int SEQUENCE_NO_BYTE_LENGTH = 8;       // long
     private final static int MAX_FILENAME_LENGTH = 100;         // 1 byte per character
     private final static int TOTAL_FILESIZE_BYTE_LENGTH = 8;    // long
+    private final static int RANGE_OFFSET_BYTE_LENGTH = 8;      // long
+    private final static int RANGE_SIZE_BYTE_LENGTH = 8;        // long
+    private final static int FLAGS_BYTE_LENGTH = 4;             // int
     private final static int PAYLOAD_FILESIZE_BYTE_LENGTH = 8;  // long
     private final static int RESPONSE_BYTE_LENGTH = 2;          // short
     private final static int PACKET_TYPE_BYTE_LENGTH = 2;       // short
+    private final static int SACK_LENGTH_BYTE_LENGTH = 2;       // short
+    private final static int ENTRY_COUNT_BYTE_LENGTH = 4;       // int
+    private final static int FIRST_ENTRY_BYTE_LENGTH = 4;       // int
+    private final static int FEC_BLOCK_SIZE_BYTE_LENGTH = 2;    // short
+    private final static int BLOCK_LENGTH_BYTE_LENGTH = 1;
+    private final static int PARITY_TYPE_BYTE_LENGTH = 1;
+    private final static int PARITY_LENGTH_BYTE_LENGTH = 2;     // short
+    private final static int PARITY_HEADER_LENGTH = BLOCK_LENGTH_BYTE_LENGTH +
+                                                    PARITY_TYPE_BYTE_LENGTH +
+                                                    PARITY_LENGTH_BYTE_LENGTH;
+    private final static int BASIS_SIZE_BYTE_LENGTH = 8;        // long
+    private final static int BLOCK_SIZE_BYTE_LENGTH = 4;        // int
+    private final static int SIGNATURE_COUNT_BYTE_LENGTH = 2;   // short
+    private final static int SIGNATURE_HEADER_LENGTH = BASIS_SIZE_BYTE_LENGTH +
+                                                       BLOCK_SIZE_BYTE_LENGTH +
+                                                       SIGNATURE_COUNT_BYTE_LENGTH;
+    private final static int SIGNATURE_BYTE_LENGTH = 4 + 8;     // Weak int, strong long
+    private final static int NAME_LENGTH_BYTE_LENGTH = 2;       // short
+    private final static int ENTRY_SIZE_BYTE_LENGTH = 8;        // long
+    private final static int DIGEST_BYTE_LENGTH = 32;           // SHA-256
 
 // Response Messages.
     public final static short MSG_NIL = 0;
     public final static short MSG_ACK = 10;
-    public final static short MSG_NAK = 20;
+    public final static short MSG_NAK = 20;         // To a termination whose digest does not match.
+    public final static short MSG_DUPLICATE = 30;   // SequenceNo was received more than once.
 
 // Termination Sequence Number
     public final static short TERMINATION_SEQUENCE_NO = -1;
 
+// Protocol versions.
+//
+// Version 1 starts with an 8 byte CRC32 of the whole 1000 byte packet, which
+// is always sent in full. A CRC32 fits in 32 bits, so byte 0 is always 0.
+//
+// Version 2 starts with a version byte, a 4 byte CRC32C (hardware
+// accelerated) of the encoded bytes only, and a 4 byte session ID, and only
+// the encoded bytes are sent. The rest of the layout is the same as version
+// 1, 1 byte further on. Version 1 packets all belong to session 0.
+//
+// Version 3 has the same prefix as version 2, but packs the rest: a 1 byte
+// type (the type / 100), the sequence number + 1 as a varint, and the other
+// numbers of the headers as varints too. Names are a varint length and
+// UTF-8, and sizes of payloads and bitmaps are what is left of the datagram.
+// Sequence numbers must fit in V3_MAX_SEQUENCE_NO_LENGTH bytes, which keeps
+// the payload size of every packet the same.
+    public final static byte PROTOCOL_V1 = 1;
+    public final static byte PROTOCOL_V2 = 2;
+    public final static byte PROTOCOL_V3 = 3;
+
+    private final static int V1_PREFIX_LENGTH = CHECKSUM_BYTE_LENGTH;
+    private final static int V2_PREFIX_LENGTH = VERSION_BYTE_LENGTH +
+                                                CRC32C_BYTE_LENGTH +
+                                                SESSION_ID_BYTE_LENGTH;
+    private final static int V3_PREFIX_LENGTH = V2_PREFIX_LENGTH;
+
+    private final static int V3_PACKET_TYPE_BYTE_LENGTH = 1;
+    private final static int V3_MAX_SEQUENCE_NO_LENGTH = 5;     // Up to 2^35 - 2
+
 // Sizes for the different packets.
     private final static int FILEHEADER_PACKET_SIZE = CHECKSUM_BYTE_LENGTH +
                                                       PACKET_TYPE_BYTE_LENGTH +
                                                       SEQUENCE_NO_BYTE_LENGTH +
                                                       TOTAL_FILESIZE_BYTE_LENGTH +
-                                                      MAX_FILENAME_LENGTH;
+                                                      MAX_FILENAME_LENGTH +
+                                                      RANGE_OFFSET_BYTE_LENGTH +
+                                                      RANGE_SIZE_BYTE_LENGTH +
+                                                      FLAGS_BYTE_LENGTH;
 
     private final static int PAYLOAD_PACKET_SIZE = PACKET_SIZE;
     public final static int PAYLOAD_MAX_DATA_SIZE = PAYLOAD_PACKET_SIZE -
@@ -47,6 +111,23 @@ class Packet {
                                                     SEQUENCE_NO_BYTE_LENGTH +
                                                     RESPONSE_BYTE_LENGTH;
 
+// Where variable length data starts within a packet, after the prefix.
+    private final static int SACK_BITMAP_OFFSET = PACKET_TYPE_BYTE_LENGTH +
+                                                  SEQUENCE_NO_BYTE_LENGTH +
+                                                  SACK_LENGTH_BYTE_LENGTH;
+
+    // What fits behind the longest prefix.
+    private final static int SACK_MAX_BITMAP_LENGTH = PACKET_SIZE -
+                                                      V2_PREFIX_LENGTH -
+                                                      SACK_BITMAP_OFFSET;
+
+    // Number of packets past the cumulative ACK that one SACK can cover.
+    public final static int SACK_MAX_BITS = SACK_MAX_BITMAP_LENGTH * 8;
+
+    private final static int PAYLOAD_DATA_OFFSET = PAYLOAD_PACKET_SIZE -
+                                                   PAYLOAD_MAX_DATA_SIZE -
+                                                   V1_PREFIX_LENGTH;
+
     // 0 ~ 7:           [CRC32 Checksum]
     // 8 ~ 9:           [PacketType]
     // 10 ~ 17:         [SequenceNo]
@@ -58,8 +139,18 @@ class Packet {
     // 10 ~ 17:         [SequenceNo]
     // 18 ~ 25:         [TotalFileSize]
     // 26 ~ 125:        [FileName]
+    // 126 ~ 133:       [RangeOffset] (Where this transfer's part of the file starts)
+    // 134 ~ 141:       [RangeSize] (Missing, or 0 at offset 0: the whole file)
+    // 142 ~ 145:       [Flags] (Missing: 0)
+    // 146 ~ 147:       [FecBlockSize] (Missing, or 0: no parity packets)
     public final static short FILE_HEADER_PACKET_TYPE = 200;
 
+    // File header flags.
+    public final static int FLAG_RESUME = 1;        // Carry on from the receiver's journal.
+    public final static int FLAG_COMPRESSED = 2;    // Payloads are placed in order, see below.
+    public final static int FLAG_DELTA = 4;         // Payloads are delta commands, see below.
+    public final static int FLAG_DIGEST = 8;        // The termination packet has a digest.
+
     // 0 ~ 7:           [CRC32 Checksum]
     // 8 ~ 9:           [PacketType]
     // 10 ~ 17:         [SequenceNo]
@@ -70,20 +161,110 @@ class Packet {
     // 0 ~ 7:           [CRC32 Checksum]
     // 8 ~ 9:           [PacketType]
     // 10 ~ 17:         [SequenceNo]
+    // 18 ~ 49:         [Digest] (With FLAG_DIGEST, see StreamDigest)
     public final static short TERMINATION_PACKET_TYPE = 400;
 
-// The packet itself.
+    // 0 ~ 7:           [CRC32 Checksum]
+    // 8 ~ 9:           [PacketType]
+    // 10 ~ 17:         [SequenceNo] (Everything up to here was received)
+    // 18 ~ 19:         [BitmapLength]
+    // 20 ~ LAST:       [Bitmap] (Bit i set: SequenceNo + 1 + i was received)
+    public final static short SACK_PACKET_TYPE = 500;
+
+    // A batch sends every file under a directory as one stream, the files
+    // one after another. Sequence numbers 1 ~ ManifestPacketCount are
+    // manifest packets listing the files in order, and the payloads after
+    // them carry the stream.
+    //
+    // 0 ~ 7:           [CRC32 Checksum]
+    // 8 ~ 9:           [PacketType]
+    // 10 ~ 17:         [SequenceNo]
+    // 18 ~ 25:         [TotalFileSize] (Of all the files together)
+    // 26 ~ 125:        [FileName] (Of the directory)
+    // 126 ~ 129:       [EntryCount]
+    // 130 ~ 133:       [ManifestPacketCount]
+    // 134 ~ 137:       [Flags] (Missing: 0)
+    // 138 ~ 139:       [FecBlockSize] (Missing, or 0: no parity packets)
+    public final static short BATCH_HEADER_PACKET_TYPE = 600;
+
+    // 0 ~ 7:           [CRC32 Checksum]
+    // 8 ~ 9:           [PacketType]
+    // 10 ~ 17:         [SequenceNo]
+    // 18 ~ 21:         [FirstEntry] (Index of the first entry in the batch)
+    // 22 ~ 25:         [EntryCount]
+    // 26 ~ LAST:       [Entries] (Each [NameLength 2][Name (UTF-8)][Size 8])
+    public final static short MANIFEST_PACKET_TYPE = 700;
+
+    // The same as a payload packet, but the data is the next part of one
+    // Deflate stream, flushed with SYNC_FLUSH at the end of every block it
+    // compresses. Only sent with FLAG_COMPRESSED, where payloads of either
+    // type follow each other in sequence rather than in the file.
+    public final static short COMPRESSED_PAYLOAD_PACKET_TYPE = 800;
+
+    // Forward error correction. With a FecBlockSize of K in the header, the
+    // payload packets are taken in blocks of K from the first one, and each
+    // block is followed by one parity packet. It is the XOR of the payloads
+    // in the block, so with any one of them lost, the others and the parity
+    // give it back. Parity packets are sent once, and never acknowledged.
+    // Payloads leave room for the parity header, see getMaxProtectedDataSize().
+    //
+    // 0 ~ 7:           [CRC32 Checksum]
+    // 8 ~ 9:           [PacketType]
+    // 10 ~ 17:         [SequenceNo] (Of the first payload in the block)
+    // 18:              [BlockLength] (Payload packets in the block)
+    // 19:              [ParityType] (XOR of the packet types / 100)
+    // 20 ~ 21:         [ParityLength] (XOR of the payload sizes)
+    // 22 ~ LAST:       [ParityData] (XOR of the payloads, zero padded)
+    public final static short FEC_PARITY_PACKET_TYPE = 900;
+
+    public final static int MAX_FEC_BLOCK_SIZE = 64;
+
+    // Delta transfers (FLAG_DELTA) build the file from the copy the receiver
+    // already has, the basis. Once the file header is acknowledged, the
+    // sender asks for the signatures of the basis's blocks a page at a time,
+    // resending requests until they are answered. Answers are not
+    // acknowledged. The payloads then follow in sequence, and are whole
+    // commands: [DELTA_LITERAL][Length varint][Bytes], or
+    // [DELTA_COPY][Block varint][Count varint] for blocks of the basis.
+    //
+    // 0 ~ 7:           [CRC32 Checksum]
+    // 8 ~ 9:           [PacketType]
+    // 10 ~ 17:         [SequenceNo] (Page of signatures)
+    public final static short SIGNATURE_REQUEST_PACKET_TYPE = 1000;
+
+    // 0 ~ 7:           [CRC32 Checksum]
+    // 8 ~ 9:           [PacketType]
+    // 10 ~ 17:         [SequenceNo] (Page of signatures)
+    // 18 ~ 25:         [BasisSize] (0: no basis)
+    // 26 ~ 29:         [BlockSize]
+    // 30 ~ 31:         [SignatureCount]
+    // 32 ~ LAST:       [Signatures] (Each [Weak 4][Strong 8], from block
+    //                  SequenceNo * getMaxSignatureCount())
+    public final static short SIGNATURE_PACKET_TYPE = 1100;
+
+    public final static byte DELTA_LITERAL = 0;
+    public final static byte DELTA_COPY = 1;
+
+// The packet itself. Everything is allocated once, so that a packet can be
+// reset() and reused for as many sends/receives as needed.
     private byte[] _packetData;
+    private ByteBuffer _buffer;
+    private ByteBuffer _payloadView;
     private DatagramPacket _packet;
+    private boolean _encoded;
 
 // Socket stuff
     private InetAddress _address;
     private int _port;
+    private SocketAddress _socketAddress;
 
 // Packet contents. (Separated by packet types)
 
     // All
+    private byte _version;
+    private int _sessionId;
     private CRC32 _checksumObj;
+    private Checksum _crc32cObj;
     private long _checksum;
     private long _seqNo;
     private short _pktType;
@@ -91,14 +272,40 @@ class Packet {
     // File Header
     private long _totalFileSize;
     private String _fileName;
+    private long _rangeOffset;
+    private long _rangeSize;
+    private int _flags;
 
-    // Payload
+    // Payload (kept in place inside _packetData)
     private long _payloadDataSize;
-    private byte[] _payloadData;
+
+    // Batch Header, Manifest (entries kept in place inside _packetData)
+    private int _firstEntry;
+    private int _entryCount;
+    private int _manifestPacketCount;
+    private int _manifestLength;
+
+    // File/Batch Header, Parity (parity data kept in place as the payload)
+    private int _fecBlockSize;
+    private int _blockLength;
+    private byte _parityType;
+    private short _parityLength;
+
+    // Signatures (kept in place inside _packetData)
+    private long _basisSize;
+    private int _blockSize;
+    private int _signatureCount;
+
+// Termination
+    private byte[] _digest;
+    private boolean _hasDigest;
 
     // Response
     private short _response;
 
+    // Selective ACK (kept in place inside _packetData)
+    private int _sackBitmapLength;
+
 
 // ***************************************************************************
 // Functions
@@ -107,87 +314,137 @@ class Packet {
     // Constructor for sending packet.
     public Packet(InetAddress address, int port) {
 
-        _packetData = new byte[PACKET_SIZE];
-        _packet = null;
-
-        _address = address;
-        _port = port;
+        this();
 
-        _checksumObj = new CRC32();
-        _checksum = 0;
-        _seqNo = 0;
-        _pktType = 0;
-
-        _totalFileSize = 0;
-        _fileName = "";
-
-        _payloadDataSize = 0;
-        _payloadData = null;
-
-        _response = MSG_NIL;
+        setAddress(address, port);
     }
 
     // Constructor for receiving packet.
     public Packet() {
 
-        // Create a byte array to store our receiving data.
-        /*switch (packetType) {
-        case FileHeader: _packetData = new byte[FILEHEADER_PACKET_SIZE]; break;
-        case Payload: _packetData = new byte[PAYLOAD_PACKET_SIZE]; break;
-        case Response: _packetData = new byte[RESPONSE_PACKET_SIZE]; break;
-        default: break;
-    }*/
-
         _packetData = new byte[PACKET_SIZE];
+        _buffer = ByteBuffer.wrap(_packetData);
+        _payloadView = ByteBuffer.wrap(_packetData);
         _packet = new DatagramPacket(_packetData, _packetData.length);
 
         _address = null;
         _port = 0;
+        _socketAddress = null;
 
+        _version = PROTOCOL_V2;
+        _sessionId = 0;
         _checksumObj = new CRC32();
+        _crc32cObj = new CRC32C();
+        _digest = new byte[DIGEST_BYTE_LENGTH];
+
+        reset();
+    }
+
+    // Clears the contents so that the packet can be reused. The protocol
+    // version and session ID are kept.
+    public void reset() {
+
+        _packet.setData(_packetData, 0, _packetData.length);
+        _buffer.clear();
+        _encoded = false;
+
         _checksum = 0;
         _seqNo = 0;
-        _pktType = RESPONSE_PACKET_TYPE;
+        _pktType = 0;
 
         _totalFileSize = 0;
         _fileName = "";
+        _rangeOffset = 0;
+        _rangeSize = 0;
+        _flags = 0;
 
         _payloadDataSize = 0;
-        _payloadData = null;
 
-        _response = MSG_NIL;
-    }
+        _firstEntry = 0;
+        _entryCount = 0;
+        _manifestPacketCount = 0;
+        _manifestLength = 0;
 
-    public boolean verify() {
+        _fecBlockSize = 0;
+        _blockLength = 0;
+        _parityType = 0;
+        _parityLength = 0;
 
-        // Wrap packet data in a byte buffer.
-        ByteBuffer bf = ByteBuffer.wrap(_packet.getData());
+        _basisSize = 0;
+        _blockSize = 0;
+        _signatureCount = 0;
 
-        // Extract out the checksum from the object.
-        long checksum = bf.getLong();
+        _hasDigest = false;
 
-        // Zero out the checksum field in the packet.
-        bf.putLong(0, 0);
+        _response = MSG_NIL;
 
-        // Generate the checksum for the received packet.
-        _checksumObj.update(bf.array());
-        _checksum = _checksumObj.getValue();
+        _sackBitmapLength = 0;
+    }
 
-        // Check if it is correct.
-        if (checksum == _checksum) {
-            _pktType = bf.getShort();
-            _seqNo = bf.getLong();
+    public boolean verify() {
 
-            // Parse the file into the appropriate type.
-            switch (_pktType) {
-                case RESPONSE_PACKET_TYPE: parseResponsePacket(bf); break;
-                case FILE_HEADER_PACKET_TYPE: parseFileHeaderPacket(bf); break;
-                case PAYLOAD_PACKET_TYPE: parsePayloadPacket(bf); break;
-                case TERMINATION_PACKET_TYPE: parseTerminationPacket(bf); break;
+        int length = _packet.getLength();
+
+        if (length < V1_PREFIX_LENGTH)
+            return false;
+
+        // Reuse the buffer wrapping the packet data.
+        ByteBuffer bf = _buffer;
+        bf.clear();
+        bf.limit(length);
+
+        Checksum checksumObj;
+        long checksum;
+
+        try {
+            // Extract out the checksum, and zero out its field in the packet.
+            if (_packetData[0] == 0) {
+                _version = PROTOCOL_V1;
+                checksumObj = _checksumObj;
+                checksum = bf.getLong();
+                bf.putLong(0, 0);
+                _sessionId = 0;
+            } else if (_packetData[0] == PROTOCOL_V2 || _packetData[0] == PROTOCOL_V3) {
+                _version = _packetData[0];
+                checksumObj = _crc32cObj;
+                bf.get();
+                checksum = bf.getInt() & 0xFFFFFFFFL;
+                bf.putInt(VERSION_BYTE_LENGTH, 0);
+                _sessionId = bf.getInt();
+            } else {
+                return false;
             }
 
-            // Let the caller know that it was successful.
-            return true;
+            // Generate the checksum for the received packet.
+            checksumObj.reset();
+            checksumObj.update(_packetData, 0, length);
+            _checksum = checksumObj.getValue();
+
+            // Check if it is correct.
+            if (checksum == _checksum) {
+                _pktType = getPacketType(bf);
+                _seqNo = getSeqNo(bf);
+
+                // Parse the file into the appropriate type.
+                switch (_pktType) {
+                    case RESPONSE_PACKET_TYPE: parseResponsePacket(bf); break;
+                    case FILE_HEADER_PACKET_TYPE: parseFileHeaderPacket(bf); break;
+                    case PAYLOAD_PACKET_TYPE: parsePayloadPacket(bf); break;
+                    case COMPRESSED_PAYLOAD_PACKET_TYPE: parsePayloadPacket(bf); break;
+                    case TERMINATION_PACKET_TYPE: parseTerminationPacket(bf); break;
+                    case SACK_PACKET_TYPE: parseSackPacket(bf); break;
+                    case BATCH_HEADER_PACKET_TYPE: parseBatchHeaderPacket(bf); break;
+                    case MANIFEST_PACKET_TYPE: parseManifestPacket(bf); break;
+                    case FEC_PARITY_PACKET_TYPE: parseParityPacket(bf); break;
+                    case SIGNATURE_REQUEST_PACKET_TYPE: parseSignatureRequestPacket(bf); break;
+                    case SIGNATURE_PACKET_TYPE: parseSignaturePacket(bf); break;
+                }
+
+                // Let the caller know that it was successful.
+                return true;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // Too short for its type.
         }
 
         return false;
@@ -196,76 +453,348 @@ class Packet {
     public DatagramPacket create() {
 
         // Check to see if we have already created the packet.
-        if (_packet != null)
+        if (_encoded)
             return _packet;
 
-        ByteBuffer bf = ByteBuffer.wrap(_packetData);
+        ByteBuffer bf = _buffer;
+        bf.clear();
 
         // Reserve space for checksum.
-        bf.putLong(0);
+        if (_version == PROTOCOL_V1) {
+            bf.putLong(0);
+        } else {
+            bf.put(_version);
+            bf.putInt(0);
+            bf.putInt(_sessionId);
+        }
 
         switch (_pktType) {
             case RESPONSE_PACKET_TYPE: createResponsePacket(bf); break;
             case FILE_HEADER_PACKET_TYPE: createFileHeaderPacket(bf); break;
             case PAYLOAD_PACKET_TYPE: createPayloadPacket(bf); break;
+            case COMPRESSED_PAYLOAD_PACKET_TYPE: createPayloadPacket(bf); break;
             case TERMINATION_PACKET_TYPE: createTerminationPacket(bf); break;
+            case SACK_PACKET_TYPE: createSackPacket(bf); break;
+            case BATCH_HEADER_PACKET_TYPE: createBatchHeaderPacket(bf); break;
+            case MANIFEST_PACKET_TYPE: createManifestPacket(bf); break;
+            case FEC_PARITY_PACKET_TYPE: createParityPacket(bf); break;
+            case SIGNATURE_REQUEST_PACKET_TYPE: createSignatureRequestPacket(bf); break;
+            case SIGNATURE_PACKET_TYPE: createSignaturePacket(bf); break;
         }
 
-        // Create CRC32 checksum
-        _checksumObj.update(bf.array());
-        _checksum = _checksumObj.getValue();
+        // Version 1 always goes out in full.
+        int length = (_version == PROTOCOL_V1) ? _packetData.length : bf.position();
 
-        // Insert checksum into the data.
-        bf.putLong(0, _checksum);
+        // Create the checksum, and insert it into the data.
+        if (_version == PROTOCOL_V1) {
+            _checksumObj.reset();
+            _checksumObj.update(_packetData, 0, length);
+            _checksum = _checksumObj.getValue();
 
-        _packet = new DatagramPacket(bf.array(), bf.array().length, _address, _port);
+            bf.putLong(0, _checksum);
+        } else {
+            _crc32cObj.reset();
+            _crc32cObj.update(_packetData, 0, length);
+            _checksum = _crc32cObj.getValue();
+
+            bf.putInt(VERSION_BYTE_LENGTH, (int)_checksum);
+        }
+
+        _packet.setData(_packetData, 0, length);
+        _encoded = true;
 
         // return the packet.
         return _packet;
     }
 
     private void createResponsePacket(ByteBuffer bf) {
-        bf.putShort(_pktType);
-        bf.putLong(_seqNo);
-        bf.putShort(_response);
+        putPacketType(bf);
+        putSeqNo(bf);
+        putNumber(bf, _response, RESPONSE_BYTE_LENGTH);
     }
 
     private void createFileHeaderPacket(ByteBuffer bf) {
-        bf.putShort(_pktType);
-        bf.putLong(_seqNo);
-        bf.putLong(_totalFileSize);
-        bf.put(padFileName(_fileName));
+        putPacketType(bf);
+        putSeqNo(bf);
+        putNumber(bf, _totalFileSize, TOTAL_FILESIZE_BYTE_LENGTH);
+        putFileName(bf);
+        putNumber(bf, _rangeOffset, RANGE_OFFSET_BYTE_LENGTH);
+        putNumber(bf, _rangeSize, RANGE_SIZE_BYTE_LENGTH);
+        putNumber(bf, _flags, FLAGS_BYTE_LENGTH);
+        putNumber(bf, _fecBlockSize, FEC_BLOCK_SIZE_BYTE_LENGTH);
     }
 
+    // The payload data has already been written in place.
     private void createPayloadPacket(ByteBuffer bf) {
-        bf.putShort(_pktType);
-        bf.putLong(_seqNo);
-        bf.putLong(_payloadDataSize);
-        bf.put(_payloadData);
+        putPacketType(bf);
+        putSeqNo(bf);
+        if (_version != PROTOCOL_V3)
+            bf.putLong(_payloadDataSize);
+        bf.position(bf.position() + (int)_payloadDataSize);
     }
 
     private void createTerminationPacket(ByteBuffer bf) {
-        bf.putShort(_pktType);
-        bf.putLong(_seqNo);
+        putPacketType(bf);
+        putSeqNo(bf);
+        if (_hasDigest)
+            bf.put(_digest);
+    }
+
+    // The bitmap has already been written in place.
+    private void createSackPacket(ByteBuffer bf) {
+        putPacketType(bf);
+        putSeqNo(bf);
+        if (_version != PROTOCOL_V3)
+            bf.putShort((short)_sackBitmapLength);
+        bf.position(bf.position() + _sackBitmapLength);
+    }
+
+    private void createBatchHeaderPacket(ByteBuffer bf) {
+        putPacketType(bf);
+        putSeqNo(bf);
+        putNumber(bf, _totalFileSize, TOTAL_FILESIZE_BYTE_LENGTH);
+        putFileName(bf);
+        putNumber(bf, _entryCount, ENTRY_COUNT_BYTE_LENGTH);
+        putNumber(bf, _manifestPacketCount, ENTRY_COUNT_BYTE_LENGTH);
+        putNumber(bf, _flags, FLAGS_BYTE_LENGTH);
+        putNumber(bf, _fecBlockSize, FEC_BLOCK_SIZE_BYTE_LENGTH);
+    }
+
+    // The entries have already been written in place.
+    private void createManifestPacket(ByteBuffer bf) {
+        putPacketType(bf);
+        putSeqNo(bf);
+        bf.putInt(_firstEntry);
+        bf.putInt(_entryCount);
+        bf.position(bf.position() + _manifestLength);
+    }
+
+    // The parity data has already been written in place. The header is
+    // the same size in every version, to keep getMaxParityDataSize() fixed.
+    private void createParityPacket(ByteBuffer bf) {
+        putPacketType(bf);
+        putSeqNo(bf);
+        bf.put((byte)_blockLength);
+        bf.put(_parityType);
+        bf.putShort(_parityLength);
+        bf.position(bf.position() + (int)_payloadDataSize);
+    }
+
+    private void createSignatureRequestPacket(ByteBuffer bf) {
+        putPacketType(bf);
+        putSeqNo(bf);
+    }
+
+    // The signatures have already been written in place.
+    private void createSignaturePacket(ByteBuffer bf) {
+        putPacketType(bf);
+        putSeqNo(bf);
+        bf.putLong(_basisSize);
+        bf.putInt(_blockSize);
+        bf.putShort((short)_signatureCount);
+        bf.position(bf.position() + _signatureCount * SIGNATURE_BYTE_LENGTH);
     }
 
     private void parseResponsePacket(ByteBuffer bf) {
-        _response = bf.getShort();
+        _response = (short)getNumber(bf, RESPONSE_BYTE_LENGTH);
     }
 
     private void parseFileHeaderPacket(ByteBuffer bf) {
-        _totalFileSize = bf.getLong();
-        _fileName = extractFileName(bf);
+        _totalFileSize = getNumber(bf, TOTAL_FILESIZE_BYTE_LENGTH);
+        _fileName = getFileName(bf);
+
+        // Older senders always send the whole file, and leave the range out.
+        if (_version == PROTOCOL_V3
+                || bf.remaining() >= RANGE_OFFSET_BYTE_LENGTH + RANGE_SIZE_BYTE_LENGTH) {
+            _rangeOffset = getNumber(bf, RANGE_OFFSET_BYTE_LENGTH);
+            _rangeSize = getNumber(bf, RANGE_SIZE_BYTE_LENGTH);
+        }
+
+        if (_rangeOffset == 0 && _rangeSize == 0)
+            _rangeSize = _totalFileSize;
+
+        if (_version == PROTOCOL_V3 || bf.remaining() >= FLAGS_BYTE_LENGTH)
+            _flags = (int)getNumber(bf, FLAGS_BYTE_LENGTH);
+
+        if (_version == PROTOCOL_V3 || bf.remaining() >= FEC_BLOCK_SIZE_BYTE_LENGTH)
+            _fecBlockSize = (int)getNumber(bf, FEC_BLOCK_SIZE_BYTE_LENGTH);
     }
 
+    // The payload is left where it is, see getPayload().
     private void parsePayloadPacket(ByteBuffer bf) {
-        _payloadDataSize = bf.getLong();
+        long size = (_version == PROTOCOL_V3) ? bf.remaining() : bf.getLong();
 
-        _payloadData = new byte[(int)_payloadDataSize];
-        bf.get(_payloadData);
+        _payloadDataSize = Math.max(0, Math.min(size, Math.min(bf.remaining(), getMaxPayloadDataSize())));
     }
 
+    // Only a sender that set FLAG_DIGEST sends one. Version 1 packets are
+    // zero padded, so whether there is one cannot be told from its length.
     private void parseTerminationPacket(ByteBuffer bf) {
+        if (bf.remaining() >= DIGEST_BYTE_LENGTH) {
+            bf.get(_digest);
+            _hasDigest = true;
+        }
+    }
+
+    // The bitmap is left where it is, see isAcked().
+    private void parseSackPacket(ByteBuffer bf) {
+        int length = (_version == PROTOCOL_V3) ? bf.remaining() : bf.getShort();
+
+        _sackBitmapLength = Math.max(0, Math.min(length,
+                                                 Math.min(SACK_MAX_BITMAP_LENGTH, bf.remaining())));
+    }
+
+    private void parseBatchHeaderPacket(ByteBuffer bf) {
+        _totalFileSize = getNumber(bf, TOTAL_FILESIZE_BYTE_LENGTH);
+        _fileName = getFileName(bf);
+        _entryCount = (int)getNumber(bf, ENTRY_COUNT_BYTE_LENGTH);
+        _manifestPacketCount = (int)getNumber(bf, ENTRY_COUNT_BYTE_LENGTH);
+
+        if (_version == PROTOCOL_V3 || bf.remaining() >= FLAGS_BYTE_LENGTH)
+            _flags = (int)getNumber(bf, FLAGS_BYTE_LENGTH);
+
+        if (_version == PROTOCOL_V3 || bf.remaining() >= FEC_BLOCK_SIZE_BYTE_LENGTH)
+            _fecBlockSize = (int)getNumber(bf, FEC_BLOCK_SIZE_BYTE_LENGTH);
+    }
+
+    private void parseSignatureRequestPacket(ByteBuffer bf) {
+    }
+
+    // The signatures are left where they are, see getWeakSignature().
+    private void parseSignaturePacket(ByteBuffer bf) {
+        _basisSize = bf.getLong();
+        _blockSize = bf.getInt();
+        _signatureCount = Math.max(0, Math.min(bf.getShort(), bf.remaining() / SIGNATURE_BYTE_LENGTH));
+    }
+
+    // The parity data is left where it is, see getPayload().
+    private void parseParityPacket(ByteBuffer bf) {
+        _blockLength = bf.get() & 0xFF;
+        _parityType = bf.get();
+        _parityLength = bf.getShort();
+        _payloadDataSize = Math.min(bf.remaining(), getMaxParityDataSize());
+    }
+
+    // The entries are left where they are, see getManifestEntries().
+    private void parseManifestPacket(ByteBuffer bf) {
+        _firstEntry = bf.getInt();
+        _entryCount = bf.getInt();
+        _manifestLength = bf.remaining();
+    }
+
+    // Helper functions: Fields that version 3 packs into as few bytes as it
+    // can, and the others keep at a fixed length.
+    private void putPacketType(ByteBuffer bf) {
+        if (_version == PROTOCOL_V3)
+            bf.put((byte)(_pktType / 100));
+        else
+            bf.putShort(_pktType);
+    }
+
+    private short getPacketType(ByteBuffer bf) {
+        if (_version == PROTOCOL_V3)
+            return (short)((bf.get() & 0xFF) * 100);
+
+        return bf.getShort();
+    }
+
+    // Version 3 sends the sequence number + 1, so that -1 takes 1 byte.
+    private void putSeqNo(ByteBuffer bf) {
+        if (_version == PROTOCOL_V3)
+            putVarLong(bf, _seqNo + 1);
+        else
+            bf.putLong(_seqNo);
+    }
+
+    private long getSeqNo(ByteBuffer bf) {
+        if (_version == PROTOCOL_V3)
+            return getVarLong(bf) - 1;
+
+        return bf.getLong();
+    }
+
+    private void putNumber(ByteBuffer bf, long value, int length) {
+        if (_version == PROTOCOL_V3) {
+            putVarLong(bf, value);
+            return;
+        }
+
+        switch (length) {
+            case 2: bf.putShort((short)value); break;
+            case 4: bf.putInt((int)value); break;
+            default: bf.putLong(value); break;
+        }
+    }
+
+    private long getNumber(ByteBuffer bf, int length) {
+        if (_version == PROTOCOL_V3)
+            return getVarLong(bf);
+
+        switch (length) {
+            case 2: return bf.getShort();
+            case 4: return bf.getInt();
+            default: return bf.getLong();
+        }
+    }
+
+    private void putFileName(ByteBuffer bf) {
+        if (_version != PROTOCOL_V3) {
+            bf.put(padFileName(_fileName));
+            return;
+        }
+
+        byte[] name = _fileName.getBytes(StandardCharsets.UTF_8);
+        putVarLong(bf, name.length);
+        bf.put(name);
+    }
+
+    private String getFileName(ByteBuffer bf) {
+        if (_version != PROTOCOL_V3)
+            return extractFileName(bf);
+
+        long length = getVarLong(bf);
+        if (length < 0 || length > bf.remaining())
+            throw new BufferUnderflowException();
+
+        String fileName = new String(_packetData, bf.position(), (int)length, StandardCharsets.UTF_8);
+        bf.position(bf.position() + (int)length);
+
+        return fileName;
+    }
+
+    // Unsigned LEB128: 7 bits a byte, low bits first, top bit set on all but
+    // the last byte. Also used for delta commands.
+    public static void putVarLong(ByteBuffer bf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bf.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        bf.put((byte)value);
+    }
+
+    public static long getVarLong(ByteBuffer bf) {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = bf.get();
+            value |= (long)(b & 0x7F) << shift;
+
+            if (b >= 0)
+                return value;
+        }
+
+        throw new BufferUnderflowException();
+    }
+
+    public static int getVarLongLength(long value) {
+        int length = 1;
+
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+
+        return length;
     }
 
     // Helper function: To pad file name until 100 characters.
@@ -295,6 +824,57 @@ class Packet {
         return _packet;
     }
 
+    public void setAddress(InetAddress address, int port) {
+        _address = address;
+        _port = port;
+        _socketAddress = new InetSocketAddress(address, port);
+
+        _packet.setAddress(address);
+        _packet.setPort(port);
+    }
+
+    public SocketAddress getSocketAddress() {
+        return _socketAddress;
+    }
+
+    public void setSocketAddress(SocketAddress address) {
+        _socketAddress = address;
+        _packet.setSocketAddress(address);
+    }
+
+    // Receives the next datagram waiting on a non-blocking channel. Returns
+    // false, leaving the packet as it was, if there is none.
+    public boolean receive(DatagramChannel channel) throws IOException {
+        _buffer.clear();
+
+        SocketAddress address = channel.receive(_buffer);
+        if (address == null)
+            return false;
+
+        _packet.setLength(_buffer.position());
+        _socketAddress = address;
+
+        return true;
+    }
+
+    // Sends the packet over a channel, to the address it was last given or
+    // received from.
+    public void send(DatagramChannel channel) throws IOException {
+        int length = create().getLength();
+
+        _buffer.clear();
+        _buffer.limit(length);
+        channel.send(_buffer, _socketAddress);
+    }
+
+    public int getSessionId() {
+        return _sessionId;
+    }
+
+    public void setSessionId(int sessionId) {
+        _sessionId = sessionId;
+    }
+
     public long getSeqNo() {
         return _seqNo;
     }
@@ -327,6 +907,29 @@ class Packet {
         _fileName = fileName;
     }
 
+    public long getRangeOffset() {
+        return _rangeOffset;
+    }
+
+    public long getRangeSize() {
+        return _rangeSize;
+    }
+
+    // The part of the file that a transfer covers, for files sent in parallel
+    // streams.
+    public void setRange(long rangeOffset, long rangeSize) {
+        _rangeOffset = rangeOffset;
+        _rangeSize = rangeSize;
+    }
+
+    public int getFlags() {
+        return _flags;
+    }
+
+    public void setFlags(int flags) {
+        _flags = flags;
+    }
+
     public long getPayloadDataSize() {
         return _payloadDataSize;
     }
@@ -335,12 +938,282 @@ class Packet {
         _payloadDataSize = payloadDataSize;
     }
 
-    public byte[] getPayloadData() {
-        return _payloadData;
+    // The payload, as a view into the packet rather than a copy. Only valid
+    // until the packet is reused.
+    public ByteBuffer getPayload() {
+        _payloadView.clear();
+        _payloadView.position(getPayloadOffset());
+        _payloadView.limit(getPayloadOffset() + (int)_payloadDataSize);
+
+        return _payloadView;
+    }
+
+    // Senders write up to getMaxPayloadDataSize() bytes of payload directly
+    // into getData() from getPayloadOffset(), then set the payload size.
+    public byte[] getData() {
+        return _packetData;
+    }
+
+    // In version 3, this depends on the sequence number, which must be set
+    // first. Parity packets have their parity data here, after their header,
+    // so their type must be set first too.
+    public int getPayloadOffset() {
+        int headerLength = getHeaderLength();
+
+        if (_version == PROTOCOL_V3)
+            return V3_PREFIX_LENGTH + V3_PACKET_TYPE_BYTE_LENGTH + getVarLongLength(_seqNo + 1)
+                   + headerLength;
+
+        if (headerLength > 0)
+            return getPrefixLength() + PACKET_TYPE_BYTE_LENGTH + SEQUENCE_NO_BYTE_LENGTH
+                   + headerLength;
+
+        return getPrefixLength() + PAYLOAD_DATA_OFFSET;
+    }
+
+    // Fixed fields that parity and signature packets have before their data.
+    private int getHeaderLength() {
+        switch (_pktType) {
+            case FEC_PARITY_PACKET_TYPE: return PARITY_HEADER_LENGTH;
+            case SIGNATURE_PACKET_TYPE: return SIGNATURE_HEADER_LENGTH;
+            default: return 0;
+        }
+    }
+
+    // What follows the type and the longest sequence number.
+    private int getMaxBodyLength() {
+        if (_version == PROTOCOL_V3)
+            return PACKET_SIZE - V3_PREFIX_LENGTH - V3_PACKET_TYPE_BYTE_LENGTH - V3_MAX_SEQUENCE_NO_LENGTH;
+
+        return PACKET_SIZE - getPrefixLength() - PACKET_TYPE_BYTE_LENGTH - SEQUENCE_NO_BYTE_LENGTH;
+    }
+
+    // Like getPayload(), for writing up to capacity bytes of payload into
+    // the packet. The type and sequence number must be set first.
+    public ByteBuffer getPayloadBuffer(int capacity) {
+        _payloadView.clear();
+        _payloadView.position(getPayloadOffset());
+        _payloadView.limit(getPayloadOffset() + capacity);
+
+        return _payloadView;
+    }
+
+    public int getMaxPayloadDataSize() {
+        if (_version == PROTOCOL_V3)
+            return PACKET_SIZE - V3_PREFIX_LENGTH - V3_PACKET_TYPE_BYTE_LENGTH - V3_MAX_SEQUENCE_NO_LENGTH;
+
+        return PAYLOAD_MAX_DATA_SIZE + V1_PREFIX_LENGTH - getPrefixLength();
+    }
+
+    public int getMaxParityDataSize() {
+        return getMaxBodyLength() - PARITY_HEADER_LENGTH;
+    }
+
+    // Signatures that fit in one signature packet.
+    public int getMaxSignatureCount() {
+        return (getMaxBodyLength() - SIGNATURE_HEADER_LENGTH) / SIGNATURE_BYTE_LENGTH;
+    }
+
+    // Largest payload a parity packet can cover.
+    public int getMaxProtectedDataSize() {
+        return Math.min(getMaxPayloadDataSize(), getMaxParityDataSize());
+    }
+
+    // Manifest entries follow the first entry and entry count, which take
+    // up the payload size field in versions 1 and 2.
+    private int getManifestOffset() {
+        if (_version == PROTOCOL_V3)
+            return getPayloadOffset() + FIRST_ENTRY_BYTE_LENGTH + ENTRY_COUNT_BYTE_LENGTH;
+
+        return getPayloadOffset();
+    }
+
+    // Bytes of entries that fit in one manifest packet.
+    public int getManifestCapacity() {
+        return getMaxPayloadDataSize() - (getManifestOffset() - getPayloadOffset());
+    }
+
+    private int getSackBitmapOffset() {
+        if (_version == PROTOCOL_V3)
+            return V3_PREFIX_LENGTH + V3_PACKET_TYPE_BYTE_LENGTH + getVarLongLength(_seqNo + 1);
+
+        return getPrefixLength() + SACK_BITMAP_OFFSET;
+    }
+
+    public int getFecBlockSize() {
+        return _fecBlockSize;
+    }
+
+    public void setFecBlockSize(int fecBlockSize) {
+        _fecBlockSize = fecBlockSize;
+    }
+
+    public int getBlockLength() {
+        return _blockLength;
+    }
+
+    public void setBlockLength(int blockLength) {
+        _blockLength = blockLength;
+    }
+
+    public byte getParityType() {
+        return _parityType;
+    }
+
+    public void setParityType(byte parityType) {
+        _parityType = parityType;
+    }
+
+    public short getParityLength() {
+        return _parityLength;
+    }
+
+    public void setParityLength(short parityLength) {
+        _parityLength = parityLength;
     }
 
-    public void setPayloadData(byte[] payloadData) {
-        _payloadData = payloadData;
+    public long getBasisSize() {
+        return _basisSize;
+    }
+
+    public void setBasisSize(long basisSize) {
+        _basisSize = basisSize;
+    }
+
+    public int getBlockSize() {
+        return _blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        _blockSize = blockSize;
+    }
+
+    public int getSignatureCount() {
+        return _signatureCount;
+    }
+
+    // Appends the signature of the next block. The type and sequence number
+    // must be set first. Returns false if it does not fit.
+    public boolean addSignature(int weak, long strong) {
+
+        if (_signatureCount >= getMaxSignatureCount())
+            return false;
+
+        int offset = getPayloadOffset() + _signatureCount * SIGNATURE_BYTE_LENGTH;
+        _buffer.putInt(offset, weak);
+        _buffer.putLong(offset + 4, strong);
+        _signatureCount++;
+
+        return true;
+    }
+
+    public int getWeakSignature(int index) {
+        return _buffer.getInt(getPayloadOffset() + index * SIGNATURE_BYTE_LENGTH);
+    }
+
+    public long getStrongSignature(int index) {
+        return _buffer.getLong(getPayloadOffset() + index * SIGNATURE_BYTE_LENGTH + 4);
+    }
+
+    public int getEntryCount() {
+        return _entryCount;
+    }
+
+    public void setEntryCount(int entryCount) {
+        _entryCount = entryCount;
+    }
+
+    public int getManifestPacketCount() {
+        return _manifestPacketCount;
+    }
+
+    public void setManifestPacketCount(int manifestPacketCount) {
+        _manifestPacketCount = manifestPacketCount;
+    }
+
+    public int getFirstEntry() {
+        return _firstEntry;
+    }
+
+    public void setFirstEntry(int firstEntry) {
+        _firstEntry = firstEntry;
+    }
+
+    // Bytes that one manifest entry takes up.
+    public static int getManifestEntryLength(int nameLength) {
+        return NAME_LENGTH_BYTE_LENGTH + nameLength + ENTRY_SIZE_BYTE_LENGTH;
+    }
+
+    // Appends an entry to a manifest packet, in place. Returns false if it
+    // does not fit.
+    public boolean addManifestEntry(byte[] name, long size) {
+        int length = getManifestEntryLength(name.length);
+
+        if (_manifestLength + length > getManifestCapacity())
+            return false;
+
+        ByteBuffer bf = _payloadView;
+        bf.clear();
+        bf.position(getManifestOffset() + _manifestLength);
+        bf.putShort((short)name.length);
+        bf.put(name);
+        bf.putLong(size);
+
+        _manifestLength += length;
+        _entryCount++;
+
+        return true;
+    }
+
+    // Decodes the entries of a manifest packet into names and sizes, from
+    // index getFirstEntry(). Returns false if they do not fit there.
+    public boolean getManifestEntries(String[] names, long[] sizes) {
+
+        if (_firstEntry < 0 || _entryCount < 0 || _firstEntry > names.length - _entryCount)
+            return false;
+
+        ByteBuffer bf = _payloadView;
+        bf.clear();
+        bf.position(getManifestOffset());
+        bf.limit(getManifestOffset() + _manifestLength);
+
+        try {
+            for (int i = _firstEntry; i < _firstEntry + _entryCount; i++) {
+                int nameLength = bf.getShort() & 0xFFFF;
+
+                names[i] = new String(_packetData, bf.position(), nameLength, StandardCharsets.UTF_8);
+                bf.position(bf.position() + nameLength);
+                sizes[i] = bf.getLong();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    public byte getVersion() {
+        return _version;
+    }
+
+    public void setVersion(byte version) {
+        _version = version;
+    }
+
+    // Helper function: Length of the version/checksum prefix.
+    private int getPrefixLength() {
+        return (_version == PROTOCOL_V1) ? V1_PREFIX_LENGTH : V2_PREFIX_LENGTH;
+    }
+
+    // The digest of everything the transfer sent, or null if the termination
+    // packet has none. Only valid until the packet is reused.
+    public byte[] getDigest() {
+        return _hasDigest ? _digest : null;
+    }
+
+    public void setDigest(byte[] digest) {
+        System.arraycopy(digest, 0, _digest, 0, DIGEST_BYTE_LENGTH);
+        _hasDigest = true;
     }
 
     public short getResponse() {
@@ -350,4 +1223,45 @@ class Packet {
     public void setResponse(short response) {
         _response = response;
     }
+
+    // Whether a SACK packet covers seqNo, either cumulatively or in its bitmap.
+    public boolean isAcked(long seqNo) {
+        if (seqNo <= _seqNo)
+            return true;
+
+        long bit = seqNo - _seqNo - 1;
+        if (bit >= _sackBitmapLength * 8L)
+            return false;
+
+        int index = getSackBitmapOffset() + (int)(bit >> 3);
+
+        return (_packetData[index] & (1 << (bit & 7))) != 0;
+    }
+
+    // Marks seqNo as received in a SACK packet. The cumulative sequence number
+    // must be set first.
+    public void setAcked(long seqNo) {
+        long bit = seqNo - _seqNo - 1;
+        if (bit < 0 || bit >= SACK_MAX_BITS)
+            return;
+
+        int index = (int)(bit >> 3);
+
+        // Clear out whatever the last use of the packet left behind.
+        for (; _sackBitmapLength <= index; _sackBitmapLength++)
+            _packetData[getSackBitmapOffset() + _sackBitmapLength] = 0;
+
+        _packetData[getSackBitmapOffset() + index] |= (byte)(1 << (bit & 7));
+    }
+
+    // Highest sequence number a SACK packet covers.
+    public long getHighestAckedSeqNo() {
+        for (int i = _sackBitmapLength - 1; i >= 0; i--) {
+            int b = _packetData[getSackBitmapOffset() + i] & 0xFF;
+            if (b != 0)
+                return _seqNo + 1 + i * 8 + (31 - Integer.numberOfLeadingZeros(b));
+        }
+
+        return _seqNo;
+    }
 };
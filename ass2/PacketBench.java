@@ -0,0 +1,415 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+// Microbenchmarks for the packet codec: encoding (create()) and decoding
+// (verify()) every packet type in every protocol version, and the checksums
+// on their own. File names are padded in versions 1 and 2 and length
+// prefixed in version 3, so the header benchmarks cover both.
+//
+// There is no JMH here, so this is a small harness in the same spirit. Each
+// benchmark runs for a number of warmup iterations, which are thrown away,
+// and then for a number of measured ones, each of a fixed length of time,
+// in calls batched so that reading the clock does not count. It reports the
+// mean time per call with the standard deviation across the measured
+// iterations, and the bytes allocated per call, which is what the GC
+// profiler reports as gc.alloc.rate.norm.
+//
+// Usage: java PacketBench [-version <1|2|3>] [-type <name>] [-time <ms>]
+//                         [-warmup <iterations>] [-iterations <iterations>]
+class PacketBench {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int DEFAULT_WARMUP_ITERATIONS = 5;
+    private final static int DEFAULT_MEASURE_ITERATIONS = 10;
+    private final static long DEFAULT_ITERATION_MILLIS = 200;
+
+// Calls between clock readings start at this, and grow until a batch takes
+// about this long.
+    private final static int MIN_BATCH_SIZE = 16;
+    private final static long BATCH_NANOS = 1000000;
+
+// Covers the checksum of every version, which verify() zeroes in place.
+    private final static int PREFIX_LENGTH = 9;
+
+    private final static short[] PACKET_TYPES = {
+        Packet.RESPONSE_PACKET_TYPE, Packet.FILE_HEADER_PACKET_TYPE, Packet.PAYLOAD_PACKET_TYPE,
+        Packet.TERMINATION_PACKET_TYPE, Packet.SACK_PACKET_TYPE, Packet.BATCH_HEADER_PACKET_TYPE,
+        Packet.MANIFEST_PACKET_TYPE, Packet.COMPRESSED_PAYLOAD_PACKET_TYPE,
+        Packet.FEC_PARITY_PACKET_TYPE, Packet.SIGNATURE_REQUEST_PACKET_TYPE,
+        Packet.SIGNATURE_PACKET_TYPE
+    };
+
+    private final static String[] PACKET_TYPE_NAMES = {
+        "response", "fileHeader", "payload", "termination", "sack", "batchHeader", "manifest",
+        "compressedPayload", "parity", "signatureRequest", "signature"
+    };
+
+// What a call does.
+    private final static int ENCODE = 0;
+    private final static int DECODE = 1;
+    private final static int CHECKSUM = 2;
+
+// Settings
+    private int _warmupIterations;
+    private int _measureIterations;
+    private long _iterationNanos;
+
+// The benchmark being run.
+    private int _op;
+    private short _pktType;
+    private Packet _pkt;                // Encoded into.
+    private Packet _rcvPkt;             // Decoded from.
+    private byte[] _datagram;           // What _pkt encodes to, for restoring _rcvPkt.
+    private int _datagramLength;
+    private Checksum _checksum;
+
+// Packet contents.
+    private byte[] _digest;
+    private byte[][] _entryNames;
+    private byte[] _checksumData;
+
+// Results are added up here, so that the JIT cannot leave the calls out.
+    private long _sink;
+
+    private ThreadMXBean _threads;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public PacketBench(int warmupIterations, int measureIterations, long iterationMillis) {
+
+        _warmupIterations = warmupIterations;
+        _measureIterations = measureIterations;
+        _iterationNanos = iterationMillis * 1000000;
+
+        Random random = new Random(0);
+
+        _digest = new byte[StreamDigest.DIGEST_LENGTH];
+        random.nextBytes(_digest);
+
+        _entryNames = new byte[64][];
+        for (int i = 0; i < _entryNames.length; i++) {
+            String name = "dir/sub" + (i % 4) + "/file" + i + ".txt";
+            _entryNames[i] = name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        _checksumData = new byte[1000];
+        random.nextBytes(_checksumData);
+
+        _sink = 0;
+        _threads = ManagementFactory.getThreadMXBean();
+    }
+
+    public static void main(String[] args) {
+
+        int version = 0;
+        String type = null;
+        long iterationMillis = DEFAULT_ITERATION_MILLIS;
+        int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+        int measureIterations = DEFAULT_MEASURE_ITERATIONS;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-version": version = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-type": type = optionValue(args, ++i); break;
+                case "-time": iterationMillis = Long.parseLong(optionValue(args, ++i)); break;
+                case "-warmup": warmupIterations = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-iterations": measureIterations = Integer.parseInt(optionValue(args, ++i)); break;
+                default: printUsage();
+            }
+        }
+
+        if (version < 0 || version > Packet.PROTOCOL_V3 || iterationMillis < 1
+                || warmupIterations < 0 || measureIterations < 1)
+            printUsage();
+
+        PacketBench bench = new PacketBench(warmupIterations, measureIterations, iterationMillis);
+
+        System.out.println(String.format("%-28s %7s %10s %10s %10s", "Benchmark", "Version",
+                                         "ns/op", "Error", "B/op"));
+
+        for (int i = 0; i < PACKET_TYPES.length; i++) {
+            if (type != null && !PACKET_TYPE_NAMES[i].equalsIgnoreCase(type))
+                continue;
+
+            for (byte v = Packet.PROTOCOL_V1; v <= Packet.PROTOCOL_V3; v++) {
+                if (version != 0 && v != version)
+                    continue;
+
+                bench.setUpPacket(ENCODE, PACKET_TYPES[i], v);
+                bench.run("encode " + PACKET_TYPE_NAMES[i], Integer.toString(v));
+
+                bench.setUpPacket(DECODE, PACKET_TYPES[i], v);
+                bench.run("decode " + PACKET_TYPE_NAMES[i], Integer.toString(v));
+            }
+        }
+
+        if (type == null || type.equalsIgnoreCase("checksum")) {
+            if (version == 0 || version == Packet.PROTOCOL_V1) {
+                bench.setUpChecksum(new CRC32());
+                bench.run("checksum CRC32 1000 B", "1");
+            }
+
+            if (version != Packet.PROTOCOL_V1) {
+                bench.setUpChecksum(new CRC32C());
+                bench.run("checksum CRC32C 1000 B", "2, 3");
+            }
+        }
+
+        // Keeps the sink alive.
+        if (bench._sink == 42)
+            System.out.println();
+    }
+
+    private static String optionValue(String[] args, int i) {
+        if (i >= args.length)
+            printUsage();
+
+        return args[i];
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java PacketBench [-version <1|2|3>] [-type <name|checksum>] "
+                           + "[-time <ms>] [-warmup <iterations>] [-iterations <iterations>]");
+        System.exit(1);
+    }
+
+    // Packets of the type and version, with _datagram holding what the
+    // type encodes to.
+    private void setUpPacket(int op, short pktType, byte version) {
+
+        _op = op;
+        _pktType = pktType;
+
+        _pkt = new Packet();
+        _pkt.setVersion(version);
+        _pkt.setSessionId(0x12345678);
+
+        // Payload bytes are left in place between calls, so fill them once.
+        new Random(pktType).nextBytes(_pkt.getData());
+
+        fillPacket(_pkt);
+        _datagramLength = _pkt.create().getLength();
+        _datagram = new byte[_datagramLength];
+        System.arraycopy(_pkt.getData(), 0, _datagram, 0, _datagramLength);
+
+        _rcvPkt = new Packet();
+        System.arraycopy(_datagram, 0, _rcvPkt.getData(), 0, _datagramLength);
+    }
+
+    private void setUpChecksum(Checksum checksum) {
+        _op = CHECKSUM;
+        _checksum = checksum;
+    }
+
+    // Warms up, measures and prints one benchmark.
+    private void run(String name, String version) {
+
+        int batchSize = MIN_BATCH_SIZE;
+
+        for (int i = 0; i < _warmupIterations; i++)
+            batchSize = iterate(batchSize, null);
+
+        double[] nanosPerCall = new double[_measureIterations];
+        long[] totals = new long[2];        // Calls, bytes allocated.
+
+        for (int i = 0; i < _measureIterations; i++) {
+            long calls = totals[0];
+            long startTime = System.nanoTime();
+
+            batchSize = iterate(batchSize, totals);
+            nanosPerCall[i] = (double)(System.nanoTime() - startTime) / (totals[0] - calls);
+        }
+
+        double mean = 0;
+        for (double n : nanosPerCall)
+            mean += n;
+        mean /= nanosPerCall.length;
+
+        double variance = 0;
+        for (double n : nanosPerCall)
+            variance += (n - mean) * (n - mean);
+        double error = (nanosPerCall.length > 1) ? Math.sqrt(variance / (nanosPerCall.length - 1)) : 0;
+
+        String allocated = (totals[1] < 0) ? "-" : String.format("%.1f", (double)totals[1] / totals[0]);
+
+        System.out.println(String.format("%-28s %7s %10.1f %10.1f %10s", name, version, mean, error,
+                                         allocated));
+    }
+
+    // Runs calls in batches for an iteration's worth of time, and returns
+    // the batch size to carry on with. Adds the calls made and the bytes
+    // allocated to totals, if given, or -1 for the bytes if the JVM cannot
+    // tell.
+    private int iterate(int batchSize, long[] totals) {
+
+        long allocatedBefore = allocatedBytes();
+        long startTime = System.nanoTime();
+        long calls = 0;
+        long now;
+
+        do {
+            long batchStart = System.nanoTime();
+            call(batchSize);
+            now = System.nanoTime();
+            calls += batchSize;
+
+            if (now - batchStart < BATCH_NANOS / 2 && batchSize < Integer.MAX_VALUE / 2)
+                batchSize *= 2;
+        } while (now - startTime < _iterationNanos);
+
+        long allocatedAfter = allocatedBytes();
+
+        if (totals != null) {
+            totals[0] += calls;
+
+            if (allocatedBefore < 0 || allocatedAfter < 0 || totals[1] < 0)
+                totals[1] = -1;
+            else
+                totals[1] += allocatedAfter - allocatedBefore;
+        }
+
+        return batchSize;
+    }
+
+    private void call(int count) {
+
+        switch (_op) {
+            case ENCODE:
+                for (int i = 0; i < count; i++) {
+                    _pkt.reset();
+                    fillPacket(_pkt);
+                    _sink += _pkt.create().getLength();
+                }
+                break;
+
+            case DECODE:
+                // Verifying zeroes the checksum in place, so the datagram is
+                // put back first, as if it had just been received.
+                for (int i = 0; i < count; i++) {
+                    _rcvPkt.reset();
+                    System.arraycopy(_datagram, 0, _rcvPkt.getData(), 0, PREFIX_LENGTH);
+                    _rcvPkt.getPacket().setLength(_datagramLength);
+
+                    if (_rcvPkt.verify())
+                        _sink += _rcvPkt.getSeqNo();
+                }
+                break;
+
+            case CHECKSUM:
+                for (int i = 0; i < count; i++) {
+                    _checksum.reset();
+                    _checksum.update(_checksumData, 0, _checksumData.length);
+                    _sink += _checksum.getValue();
+                }
+                break;
+        }
+    }
+
+    // What a sender or receiver would put in a packet of the type.
+    private void fillPacket(Packet pkt) {
+
+        pkt.setPacketType(_pktType);
+
+        switch (_pktType) {
+            case Packet.RESPONSE_PACKET_TYPE:
+                pkt.setSeqNo(Packet.TERMINATION_SEQUENCE_NO);
+                pkt.setResponse(Packet.MSG_ACK);
+                break;
+
+            case Packet.FILE_HEADER_PACKET_TYPE:
+                pkt.setSeqNo(0);
+                pkt.setTotalFileSize(1L << 32);
+                pkt.setFileName("received/out.bin");
+                pkt.setRange(0, 1L << 32);
+                pkt.setFlags(Packet.FLAG_DIGEST);
+                pkt.setFecBlockSize(8);
+                break;
+
+            case Packet.PAYLOAD_PACKET_TYPE:
+            case Packet.COMPRESSED_PAYLOAD_PACKET_TYPE:
+                pkt.setSeqNo(1000000);
+                pkt.setPayloadDataSize(pkt.getMaxPayloadDataSize());
+                break;
+
+            case Packet.TERMINATION_PACKET_TYPE:
+                pkt.setSeqNo(Packet.TERMINATION_SEQUENCE_NO);
+                pkt.setDigest(_digest);
+                break;
+
+            case Packet.SACK_PACKET_TYPE:
+                pkt.setSeqNo(1000000);
+                for (long seqNo = 1000002; seqNo < 1000064; seqNo += 2)
+                    pkt.setAcked(seqNo);
+                break;
+
+            case Packet.BATCH_HEADER_PACKET_TYPE:
+                pkt.setSeqNo(0);
+                pkt.setTotalFileSize(1L << 32);
+                pkt.setFileName("received");
+                pkt.setEntryCount(_entryNames.length);
+                pkt.setManifestPacketCount(2);
+                pkt.setFlags(Packet.FLAG_DIGEST);
+                pkt.setFecBlockSize(8);
+                break;
+
+            case Packet.MANIFEST_PACKET_TYPE:
+                pkt.setSeqNo(1);
+                pkt.setFirstEntry(0);
+
+                int entry = 0;
+                while (entry < _entryNames.length && pkt.addManifestEntry(_entryNames[entry], entry))
+                    entry++;
+                break;
+
+            case Packet.FEC_PARITY_PACKET_TYPE:
+                pkt.setSeqNo(1000000);
+                pkt.setBlockLength(8);
+                pkt.setParityType((byte)3);
+                pkt.setParityLength((short)pkt.getMaxParityDataSize());
+                pkt.setPayloadDataSize(pkt.getMaxParityDataSize());
+                break;
+
+            case Packet.SIGNATURE_REQUEST_PACKET_TYPE:
+                pkt.setSeqNo(3);
+                break;
+
+            case Packet.SIGNATURE_PACKET_TYPE:
+                pkt.setSeqNo(3);
+                pkt.setBasisSize(1L << 30);
+                pkt.setBlockSize(32768);
+
+                int block = 0;
+                while (pkt.addSignature(block * 0x9E3779B1, block * 0x9E3779B97F4A7C15L))
+                    block++;
+                break;
+        }
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the JVM cannot tell.
+    private long allocatedBytes() {
+
+        if (!(_threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)_threads;
+
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
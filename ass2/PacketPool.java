@@ -0,0 +1,29 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+import java.util.ArrayDeque;
+
+// Free list of packets, so that a busy endpoint stops allocating once it has
+// as many as it ever holds at the same time. Not thread safe.
+class PacketPool {
+
+    private ArrayDeque<Packet> _freePkts;
+
+    public PacketPool() {
+        _freePkts = new ArrayDeque<Packet>();
+    }
+
+    // Returns a reset packet, new or recycled.
+    public Packet acquire() {
+        Packet pkt = _freePkts.pollFirst();
+
+        if (pkt == null)
+            return new Packet();
+
+        pkt.reset();
+        return pkt;
+    }
+
+    public void release(Packet pkt) {
+        _freePkts.addFirst(pkt);
+    }
+}
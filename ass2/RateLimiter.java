@@ -0,0 +1,58 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+// Token bucket pacer, kept as the earliest time the next datagram may go out
+// (the "virtual scheduling" form of a token bucket). Each datagram pushes
+// that time back by its own transmission time at the target rate, so
+// datagrams are spread evenly, and up to MAX_BURST worth of lateness can be
+// caught up on. The rate can be changed from any thread at any time.
+class RateLimiter {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static long MAX_BURST = 1000000;         // ns
+
+    private volatile long _bitsPerSecond;                   // 0 for unlimited
+    private long _nextSendTime;                             // System.nanoTime()
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public RateLimiter(long bitsPerSecond) {
+        _bitsPerSecond = bitsPerSecond;
+        _nextSendTime = System.nanoTime();
+    }
+
+    // Nanoseconds until the next datagram may be sent, 0 if it may go now.
+    public long getDelay() {
+        if (_bitsPerSecond <= 0)
+            return 0;
+
+        return Math.max(0, _nextSendTime - System.nanoTime());
+    }
+
+    // Accounts for a datagram of the given size having been sent.
+    public void consume(int bytes) {
+        long bitsPerSecond = _bitsPerSecond;
+
+        if (bitsPerSecond <= 0)
+            return;
+
+        long now = System.nanoTime();
+        long cost = (long)(bytes * 8 * 1e9 / bitsPerSecond);
+
+        _nextSendTime = Math.max(_nextSendTime, now - MAX_BURST) + cost;
+    }
+
+    public long getRate() {
+        return _bitsPerSecond;
+    }
+
+    public void setRate(long bitsPerSecond) {
+        _bitsPerSecond = bitsPerSecond;
+    }
+}
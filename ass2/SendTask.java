@@ -0,0 +1,110 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
+
+// A packet that is sent, and resent every interval from a TimerWheel until
+// it is cancelled.
+class SendTask extends TimerWheel.Timeout {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+// Socket stuff. Tasks send either on a socket or on a channel.
+    private DatagramSocket _socket;
+    private DatagramChannel _channel;
+
+// Packet to send.
+    private Packet _pkt;
+
+// Milliseconds between resends.
+    private long _interval;
+    private TimeoutListener _listener;
+
+// Send history, for RTT sampling.
+    private long _lastSentTime;     // System.nanoTime()
+    private int _sendCount;
+
+// Whether SACKs have already had this packet resent.
+    private boolean _fastRetransmitted;
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor.
+    public SendTask(DatagramSocket socket, Packet pkt, long interval, TimeoutListener listener) {
+        _socket = socket;
+        _channel = null;
+        _pkt = pkt;
+        _listener = listener;
+
+        reset(interval);
+    }
+
+    public SendTask(DatagramChannel channel, Packet pkt, long interval, TimeoutListener listener) {
+        this((DatagramSocket)null, pkt, interval, listener);
+
+        _channel = channel;
+    }
+
+    // Starts over, for when the task is reused for the next packet.
+    public void reset(long interval) {
+        _interval = interval;
+
+        _lastSentTime = 0;
+        _sendCount = 0;
+        _fastRetransmitted = false;
+    }
+
+    // Thing to do every interval.
+    public void run() {
+        if (_listener != null)
+            _listener.onTimeout(this);
+
+        send();
+    }
+
+    public void send() {
+        try {
+            if (_channel != null)
+                _pkt.send(_channel);
+            else
+                _socket.send(_pkt.create());
+            _lastSentTime = System.nanoTime();
+            _sendCount++;
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    public Packet getPacket() {
+        return _pkt;
+    }
+
+    public long getInterval() {
+        return _interval;
+    }
+
+    public void setInterval(long interval) {
+        _interval = interval;
+    }
+
+    public long getLastSentTime() {
+        return _lastSentTime;
+    }
+
+    public int getSendCount() {
+        return _sendCount;
+    }
+
+    public boolean isFastRetransmitted() {
+        return _fastRetransmitted;
+    }
+
+    public void setFastRetransmitted() {
+        _fastRetransmitted = true;
+    }
+}
@@ -0,0 +1,194 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+// End-to-end check of a transfer: the SHA-256 of the SHA-256 of each chunk
+// of the stream in turn, where every chunk but the last is as large as a
+// full payload. Both ends work it out as the data goes by, the sender from
+// what it reads and the receiver from what it writes. Chunks can come in
+// any order, and wait for the ones before them, so a receiver that writes
+// payloads where they belong never has to read the file back.
+class StreamDigest {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    public final static int DIGEST_LENGTH = 32;
+    private final static int FINISHED_HASHES_SIZE = 1024;  // To start with.
+
+    private int _chunkSize;
+    private MessageDigest _chunkDigest;
+    private MessageDigest _digest;
+    private byte[] _chunkHash;
+    private int _chunkLength;                       // Of the chunk being taken in.
+    private long _nextChunk;                        // Next one for _digest.
+    private HashMap<Long, byte[]> _pendingChunks;   // Hashes of chunks that came early.
+    private long _length;
+
+// Hashes of the chunks taken in order since _firstFinishedChunk, back to back,
+// for a TransferJournal to save. Null unless asked for.
+    private ByteBuffer _finishedHashes;
+    private long _firstFinishedChunk;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public StreamDigest(int chunkSize) {
+        try {
+            _chunkDigest = MessageDigest.getInstance("SHA-256");
+            _digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            System.out.println(e.toString());
+        }
+
+        _chunkSize = chunkSize;
+        _chunkHash = new byte[DIGEST_LENGTH];
+        _chunkLength = 0;
+        _nextChunk = 0;
+        _pendingChunks = new HashMap<Long, byte[]>();
+        _length = 0;
+
+        _finishedHashes = null;
+        _firstFinishedChunk = 0;
+    }
+
+    // Takes the next bytes of the stream.
+    public void update(byte[] data, int offset, int length) {
+
+        _length += length;
+
+        while (length > 0) {
+            int count = Math.min(length, _chunkSize - _chunkLength);
+
+            _chunkDigest.update(data, offset, count);
+            _chunkLength += count;
+            offset += count;
+            length -= count;
+
+            if (_chunkLength == _chunkSize)
+                finishChunk();
+        }
+    }
+
+    // The same, leaving the buffer's position where it is.
+    public void update(ByteBuffer data) {
+        update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    // Takes a whole chunk, which need not be the next one. Not to be mixed
+    // with update().
+    public void addChunk(long chunk, ByteBuffer data) {
+
+        if (chunk < _nextChunk || _pendingChunks.containsKey(chunk))
+            return;
+
+        _length += data.remaining();
+        _chunkDigest.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+
+        if (chunk != _nextChunk) {
+            _pendingChunks.put(chunk, _chunkDigest.digest());
+            return;
+        }
+
+        _chunkLength = data.remaining();
+        finishChunk();
+
+        byte[] hash;
+
+        while ((hash = _pendingChunks.remove(_nextChunk)) != null) {
+            digestChunk(hash);
+            _nextChunk++;
+        }
+    }
+
+    // Takes the next chunk, of length bytes, by its hash as worked out
+    // before, when the chunk was first taken in. Not kept as a finished hash.
+    public void addChunkHash(byte[] hash, int offset, int length) {
+
+        _length += length;
+        _digest.update(hash, offset, DIGEST_LENGTH);
+        _nextChunk++;
+    }
+
+    // Keeps the hashes of the chunks taken in order from now on, until
+    // clearFinishedHashes().
+    public void keepFinishedHashes() {
+        _finishedHashes = ByteBuffer.allocate(FINISHED_HASHES_SIZE * DIGEST_LENGTH);
+        _firstFinishedChunk = _nextChunk;
+    }
+
+    // The chunk that the first of getFinishedHashes() is for.
+    public long getFirstFinishedChunk() {
+        return _firstFinishedChunk;
+    }
+
+    // Ready to be read. Empty unless keepFinishedHashes() was called.
+    public ByteBuffer getFinishedHashes() {
+
+        if (_finishedHashes == null)
+            return ByteBuffer.allocate(0);
+
+        ByteBuffer bf = _finishedHashes.duplicate();
+        bf.flip();
+        return bf;
+    }
+
+    public void clearFinishedHashes() {
+
+        if (_finishedHashes != null)
+            _finishedHashes.clear();
+        _firstFinishedChunk = _nextChunk;
+    }
+
+    // Bytes taken in so far.
+    public long getLength() {
+        return _length;
+    }
+
+    // Of everything taken in. Chunks still waiting for one before them are
+    // left out, so the digest cannot match then.
+    public byte[] digest() {
+
+        if (_chunkLength > 0)
+            finishChunk();
+
+        return _digest.digest();
+    }
+
+    private void finishChunk() {
+        try {
+            _chunkDigest.digest(_chunkHash, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            System.out.println(e.toString());
+        }
+
+        digestChunk(_chunkHash);
+        _chunkLength = 0;
+        _nextChunk++;
+    }
+
+    private void digestChunk(byte[] hash) {
+
+        _digest.update(hash);
+
+        if (_finishedHashes == null)
+            return;
+
+        if (!_finishedHashes.hasRemaining()) {
+            ByteBuffer bf = ByteBuffer.allocate(_finishedHashes.capacity() * 2);
+            _finishedHashes.flip();
+            bf.put(_finishedHashes);
+            _finishedHashes = bf;
+        }
+
+        _finishedHashes.put(hash);
+    }
+}
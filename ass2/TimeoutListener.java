@@ -0,0 +1,7 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+// Lets the owner of a SendTask react to its timer expiring before the task
+// resends its packet.
+interface TimeoutListener {
+    public void onTimeout(SendTask task);
+}
@@ -0,0 +1,221 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+// Hashed timing wheel shared by every outstanding packet of an endpoint, or
+// anything else that extends TimerWheel.Timeout.
+//
+// The wheel does not own a thread. The endpoint polls it from its own loop:
+// it waits on its socket for at most getTimeout() milliseconds and then calls
+// advance() to fire whatever has expired. Tasks are linked into their slot
+// through fields on the task itself, so scheduling and cancelling are O(1)
+// and allocate nothing.
+class TimerWheel {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int WHEEL_SIZE = 512;      // Must be a power of 2.
+    private final static long TICK_MILLIS = 1;
+
+    private Timeout[] _slots;
+    private int _mask;
+
+    private long _startTime;            // System.nanoTime() at tick 0.
+    private long _currTick;             // Last tick that has been processed.
+    private long _nextExpiryTick;       // Earliest deadline, or -1 if unknown.
+    private int _pendingTasks;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public TimerWheel() {
+
+        _slots = new Timeout[WHEEL_SIZE];
+        _mask = WHEEL_SIZE - 1;
+
+        _startTime = System.nanoTime();
+        _currTick = 0;
+        _nextExpiryTick = -1;
+        _pendingTasks = 0;
+    }
+
+    // Runs the task once after delayMillis, and then every task.getInterval()
+    // milliseconds until it is cancelled.
+    public void schedule(Timeout task, long delayMillis) {
+
+        cancel(task);
+
+        long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        long deadline = Math.max(currentTick(), _currTick) + ticks;
+
+        insert(task, deadline);
+    }
+
+    public void cancel(Timeout task) {
+
+        // Already taken off the wheel and waiting to fire, just skip it.
+        if (task.expired) {
+            task.expired = false;
+            return;
+        }
+
+        if (!task.scheduled)
+            return;
+
+        unlink(task);
+    }
+
+    private void unlink(Timeout task) {
+
+        int slot = (int)(task.deadlineTick & _mask);
+
+        if (task.prev != null)
+            task.prev.next = task.next;
+        else
+            _slots[slot] = task.next;
+
+        if (task.next != null)
+            task.next.prev = task.prev;
+
+        task.prev = null;
+        task.next = null;
+        task.scheduled = false;
+        _pendingTasks--;
+    }
+
+    // Fires every task whose deadline has passed.
+    public void advance() {
+
+        long nowTick = currentTick();
+
+        if (_pendingTasks == 0) {
+            _currTick = nowTick;
+            return;
+        }
+
+        // Nothing can expire before the earliest known deadline.
+        if (_nextExpiryTick != -1 && nowTick < _nextExpiryTick)
+            return;
+
+        // Take every expired task off the wheel first, so that tasks are free
+        // to cancel or reschedule each other while they run.
+        Timeout expired = null;
+
+        // A full rotation already visits every slot once.
+        long fromTick = Math.max(_currTick + 1, nowTick - _mask);
+
+        for (long tick = fromTick; tick <= nowTick; tick++) {
+            Timeout task = _slots[(int)(tick & _mask)];
+
+            while (task != null) {
+                Timeout next = task.next;
+
+                if (task.deadlineTick <= nowTick) {
+                    unlink(task);
+                    task.expired = true;
+                    task.nextExpired = expired;
+                    expired = task;
+                }
+
+                task = next;
+            }
+        }
+
+        _currTick = nowTick;
+        _nextExpiryTick = -1;
+
+        while (expired != null) {
+            Timeout task = expired;
+            expired = task.nextExpired;
+            task.nextExpired = null;
+
+            // Cancelled by an earlier task.
+            if (!task.expired)
+                continue;
+
+            task.expired = false;
+            task.run();
+
+            if (task.getInterval() > 0 && !task.scheduled)
+                insert(task, nowTick + Math.max(1, task.getInterval() / TICK_MILLIS));
+        }
+    }
+
+    // Milliseconds until the next task expires, 0 if one is already due, or
+    // -1 if nothing is scheduled.
+    public long getTimeout() {
+
+        if (_pendingTasks == 0)
+            return -1;
+
+        if (_nextExpiryTick == -1)
+            _nextExpiryTick = findNextExpiryTick();
+
+        return Math.max(0, (_nextExpiryTick - currentTick()) * TICK_MILLIS);
+    }
+
+    public boolean isEmpty() {
+        return _pendingTasks == 0;
+    }
+
+    private void insert(Timeout task, long deadline) {
+
+        int slot = (int)(deadline & _mask);
+
+        task.deadlineTick = deadline;
+        task.prev = null;
+        task.next = _slots[slot];
+        if (task.next != null)
+            task.next.prev = task;
+        _slots[slot] = task;
+
+        task.scheduled = true;
+        _pendingTasks++;
+
+        if (_nextExpiryTick != -1 && deadline < _nextExpiryTick)
+            _nextExpiryTick = deadline;
+    }
+
+    // Helper function: Scans one rotation ahead for the earliest deadline.
+    private long findNextExpiryTick() {
+
+        long earliest = Long.MAX_VALUE;
+
+        for (int i = 0; i <= _mask; i++) {
+            long tick = _currTick + 1 + i;
+
+            for (Timeout task = _slots[(int)(tick & _mask)]; task != null; task = task.next)
+                earliest = Math.min(earliest, task.deadlineTick);
+
+            // Nothing in a later slot can beat a deadline in this rotation.
+            if (earliest <= tick)
+                return earliest;
+        }
+
+        return earliest;
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - _startTime) / (TICK_MILLIS * 1000000L);
+    }
+
+    // Something to run once its delay is up, and then every getInterval()
+    // milliseconds. The fields are the wheel's bookkeeping.
+    public abstract static class Timeout {
+
+        Timeout prev;
+        Timeout next;
+        Timeout nextExpired;
+        long deadlineTick;
+        boolean scheduled;
+        boolean expired;
+
+        public abstract void run();
+
+        // 0 to run only once.
+        public abstract long getInterval();
+    }
+}
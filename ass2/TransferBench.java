@@ -0,0 +1,406 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// End-to-end benchmark of whole transfers over loopback. For every file size,
+// loss rate and corruption rate asked for, it starts FileReceiver, UnreliNET
+// and FileSender as child processes in a scratch directory, the same way
+// they are started by hand. It times the transfer and checks the result.
+// Loss and corruption rates go to data and ACKs alike.
+//
+// Each run reports its transfer time and goodput (file bits over that time),
+// along with the wall-clock time of the sender, JVM startup and all. It takes
+// the transfer time, the retransmissions, and the CPU time of the sender's
+// and receiver's threads, from the summaries that -stats makes them print.
+// With several streams, the transfer time is that of the slowest.
+// Results go to standard output as CSV or JSON, and progress to standard
+// error. Everything after "--" is passed on to FileSender.
+//
+// Usage: java TransferBench [-sizes <bytes,...>] [-loss <rate,...>]
+//                           [-corrupt <rate,...>] [-runs <count>]
+//                           [-format <csv|json>] [-port <port>]
+//                           [-timeout <seconds>] [-- <FileSender options>]
+class TransferBench {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int DEFAULT_PORT = 9200;
+    private final static long DEFAULT_TIMEOUT = 120;           // s
+    private final static long STARTUP_DELAY = 500;             // ms, for the others to bind.
+    private final static long SHUTDOWN_TIMEOUT = 10;           // s, for the receiver to finish.
+
+// Only the summary at the end is wanted, so the interval is longer than any run.
+    private final static String STATS_INTERVAL = "86400";
+
+// The summary line at the end, of each stream.
+    private final static Pattern TRANSFER_TIME =
+            Pattern.compile("([0-9.]+) s: [0-9.]+ Mbit/s goodput.*, CPU");
+    private final static Pattern RETRANSMITS = Pattern.compile("(\\d+) retransmits");
+    private final static Pattern CPU_TIME = Pattern.compile("CPU ([0-9.]+) s");
+
+    private String _javaCommand;
+    private String _classPath;
+    private int _port;
+    private long _timeout;
+    private List<String> _senderOptions;
+
+    private Path _workDir;
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public TransferBench(int port, long timeout, List<String> senderOptions) throws IOException {
+
+        _javaCommand = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        _classPath = absoluteClassPath(System.getProperty("java.class.path"));
+        _port = port;
+        _timeout = timeout;
+        _senderOptions = senderOptions;
+
+        _workDir = Files.createTempDirectory("transferbench");
+    }
+
+    public static void main(String[] args) {
+
+        long[] sizes = { 1000000, 10000000 };
+        double[] lossRates = { 0, 0.01, 0.05 };
+        double[] corruptRates = { 0 };
+        int runs = 3;
+        boolean json = false;
+        int port = DEFAULT_PORT;
+        long timeout = DEFAULT_TIMEOUT;
+        List<String> senderOptions = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-sizes": sizes = parseSizes(optionValue(args, ++i)); break;
+                case "-loss": lossRates = parseRates(optionValue(args, ++i)); break;
+                case "-corrupt": corruptRates = parseRates(optionValue(args, ++i)); break;
+                case "-runs": runs = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-format":
+                    String format = optionValue(args, ++i);
+                    if (!format.equals("csv") && !format.equals("json"))
+                        printUsage();
+                    json = format.equals("json");
+                    break;
+                case "-port": port = Integer.parseInt(optionValue(args, ++i)); break;
+                case "-timeout": timeout = Long.parseLong(optionValue(args, ++i)); break;
+                case "--":
+                    while (++i < args.length)
+                        senderOptions.add(args[i]);
+                    break;
+                default: printUsage();
+            }
+        }
+
+        if (runs < 1 || timeout < 1)
+            printUsage();
+
+        try {
+            TransferBench bench = new TransferBench(port, timeout, senderOptions);
+            List<String> rows = new ArrayList<String>();
+
+            if (!json)
+                System.out.println(csvHeader());
+
+            for (long size : sizes) {
+                for (double lossRate : lossRates) {
+                    for (double corruptRate : corruptRates) {
+                        for (int run = 1; run <= runs; run++) {
+                            Result result = bench.transfer(size, lossRate, corruptRate, run);
+                            System.err.println(result.toCsv());
+
+                            if (json)
+                                rows.add(result.toJson());
+                            else
+                                System.out.println(result.toCsv());
+                        }
+                    }
+                }
+            }
+
+            if (json)
+                System.out.println("[\n  " + String.join(",\n  ", rows) + "\n]");
+
+            bench.close();
+        } catch (IOException | InterruptedException e) {
+            System.out.println(e.toString());
+            System.exit(1);
+        }
+    }
+
+    // One transfer, with the input made afresh from a seed so that runs
+    // can be repeated.
+    private Result transfer(long size, double lossRate, double corruptRate, int run)
+            throws IOException, InterruptedException {
+
+        Path dir = Files.createDirectories(_workDir.resolve("run"));
+        cleanDirectory(dir);
+
+        Path in = dir.resolve("in.bin");
+        Path out = dir.resolve("out.bin");
+        writeRandomFile(in, size, size * 31 + run);
+
+        String netPort = Integer.toString(_port);
+        String rcvPort = Integer.toString(_port + 1);
+        String loss = Double.toString(lossRate);
+        String corrupt = Double.toString(corruptRate);
+
+        Process receiver = start(dir, "receiver.log", "FileReceiver", rcvPort, "-stats", STATS_INTERVAL);
+        Process net = start(dir, "net.log", "UnreliNET", corrupt, corrupt, loss, loss, netPort, rcvPort);
+
+        Thread.sleep(STARTUP_DELAY);
+
+        List<String> senderArgs = new ArrayList<String>();
+        senderArgs.add("in.bin");
+        senderArgs.add(netPort);
+        senderArgs.add("out.bin");
+        senderArgs.add("-stats");
+        senderArgs.add(STATS_INTERVAL);
+        senderArgs.addAll(_senderOptions);
+
+        long startTime = System.nanoTime();
+        Process sender = start(dir, "sender.log", "FileSender", senderArgs.toArray(new String[0]));
+
+        boolean finished = sender.waitFor(_timeout, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - startTime;
+
+        if (!finished)
+            sender.destroyForcibly();
+
+        // A finished receiver lingers for a while, then stops by itself.
+        if (!receiver.waitFor(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+            receiver.destroyForcibly();
+
+        net.destroyForcibly();
+        net.waitFor();
+        receiver.waitFor();
+        sender.waitFor();
+
+        Result result = new Result(size, lossRate, corruptRate, run);
+        result.ok = finished && sender.exitValue() == 0 && Files.exists(out)
+                    && Files.mismatch(in, out) == -1;
+        result.wallSeconds = elapsed / 1e9;
+
+        String senderLog = new String(Files.readAllBytes(dir.resolve("sender.log")));
+        String receiverLog = new String(Files.readAllBytes(dir.resolve("receiver.log")));
+
+        result.seconds = maxDouble(TRANSFER_TIME, senderLog);
+        result.retransmits = lastLong(RETRANSMITS, senderLog);
+        result.senderCpu = lastDouble(CPU_TIME, senderLog);
+        result.receiverCpu = lastDouble(CPU_TIME, receiverLog);
+
+        return result;
+    }
+
+    private Process start(Path dir, String logName, String mainClass, String... args)
+            throws IOException {
+
+        List<String> command = new ArrayList<String>();
+        command.add(_javaCommand);
+        command.add("-cp");
+        command.add(_classPath);
+        command.add(mainClass);
+
+        for (String arg : args)
+            command.add(arg);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(dir.toFile());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(dir.resolve(logName).toFile());
+
+        return builder.start();
+    }
+
+    // The children run in the scratch directory, so "." would not do.
+    private static String absoluteClassPath(String classPath) {
+        String[] entries = classPath.split(File.pathSeparator);
+
+        for (int i = 0; i < entries.length; i++)
+            entries[i] = Paths.get(entries[i]).toAbsolutePath().toString();
+
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private void close() throws IOException {
+        cleanDirectory(_workDir);
+        Files.deleteIfExists(_workDir);
+    }
+
+    private static void cleanDirectory(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>)paths.sorted(Comparator.reverseOrder())::iterator) {
+                if (!path.equals(dir))
+                    Files.delete(path);
+            }
+        }
+    }
+
+    private static void writeRandomFile(Path path, long size, long seed) throws IOException {
+
+        Random random = new Random(seed);
+        byte[] block = new byte[64 * 1024];
+
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(path))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                os.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    // The last match in the log, or -1 if there is none.
+    private static long lastLong(Pattern pattern, String log) {
+        Matcher matcher = pattern.matcher(log);
+        long value = -1;
+
+        while (matcher.find())
+            value = Long.parseLong(matcher.group(1));
+
+        return value;
+    }
+
+    private static double lastDouble(Pattern pattern, String log) {
+        Matcher matcher = pattern.matcher(log);
+        double value = -1;
+
+        while (matcher.find())
+            value = Double.parseDouble(matcher.group(1));
+
+        return value;
+    }
+
+    // The largest match in the log, or -1 if there is none.
+    private static double maxDouble(Pattern pattern, String log) {
+        Matcher matcher = pattern.matcher(log);
+        double value = -1;
+
+        while (matcher.find())
+            value = Math.max(value, Double.parseDouble(matcher.group(1)));
+
+        return value;
+    }
+
+    // Sizes may end in K, M or G, for powers of 1000.
+    private static long[] parseSizes(String value) {
+        String[] parts = value.split(",");
+        long[] sizes = new long[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim().toUpperCase(Locale.ROOT);
+            long unit = 1;
+
+            switch (part.charAt(part.length() - 1)) {
+                case 'K': unit = 1000; break;
+                case 'M': unit = 1000000; break;
+                case 'G': unit = 1000000000; break;
+            }
+
+            if (unit > 1)
+                part = part.substring(0, part.length() - 1);
+
+            sizes[i] = (long)(Double.parseDouble(part) * unit);
+        }
+
+        return sizes;
+    }
+
+    private static double[] parseRates(String value) {
+        String[] parts = value.split(",");
+        double[] rates = new double[parts.length];
+
+        for (int i = 0; i < parts.length; i++)
+            rates[i] = Double.parseDouble(parts[i].trim());
+
+        return rates;
+    }
+
+    private static String optionValue(String[] args, int i) {
+        if (i >= args.length)
+            printUsage();
+
+        return args[i];
+    }
+
+    private static String csvHeader() {
+        return "size,loss,corrupt,run,ok,seconds,wall_seconds,goodput_mbps,retransmits,"
+               + "sender_cpu_s,receiver_cpu_s,cpu_ms_per_mb";
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java TransferBench [-sizes <bytes,...>] [-loss <rate,...>] "
+                           + "[-corrupt <rate,...>] [-runs <count>] [-format <csv|json>] "
+                           + "[-port <port>] [-timeout <seconds>] [-- <FileSender options>]");
+        System.exit(1);
+    }
+
+    // What one transfer came to. Numbers that could not be found are -1.
+    private static class Result {
+
+        long size;
+        double lossRate;
+        double corruptRate;
+        int run;
+
+        boolean ok;
+        double seconds;             // Of the transfer itself, see TRANSFER_TIME.
+        double wallSeconds;         // From starting the sender until it exits.
+        long retransmits;
+        double senderCpu;
+        double receiverCpu;
+
+        Result(long size, double lossRate, double corruptRate, int run) {
+            this.size = size;
+            this.lossRate = lossRate;
+            this.corruptRate = corruptRate;
+            this.run = run;
+        }
+
+        double goodput() {
+            return (ok && seconds > 0) ? size * 8 / seconds / 1e6 : 0;
+        }
+
+        // Of both ends together.
+        double cpuPerMegabyte() {
+            if (senderCpu < 0 || receiverCpu < 0 || size == 0)
+                return -1;
+
+            return (senderCpu + receiverCpu) * 1e3 / (size / 1e6);
+        }
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%d,%s,%s,%d,%b,%.3f,%.3f,%.2f,%d,%.3f,%.3f,%.2f",
+                                 size, lossRate, corruptRate, run, ok, seconds, wallSeconds, goodput(),
+                                 retransmits, senderCpu, receiverCpu, cpuPerMegabyte());
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT,
+                                 "{\"size\": %d, \"loss\": %s, \"corrupt\": %s, \"run\": %d, "
+                                 + "\"ok\": %b, \"seconds\": %.3f, \"wallSeconds\": %.3f, "
+                                 + "\"goodputMbps\": %.2f, \"retransmits\": %d, "
+                                 + "\"senderCpuSeconds\": %.3f, \"receiverCpuSeconds\": %.3f, "
+                                 + "\"cpuMsPerMB\": %.2f}",
+                                 size, lossRate, corruptRate, run, ok, seconds, wallSeconds, goodput(),
+                                 retransmits, senderCpu, receiverCpu, cpuPerMegabyte());
+        }
+    }
+}
@@ -0,0 +1,356 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Counters of one sender or receiver, published as an MBean under
+// "ass2:type=<Sender|Receiver>,name=<name>" and, optionally, printed as a
+// line every so often. Only the endpoint's own thread updates them, so the
+// counters are plain volatile fields rather than atomics, and keeping them
+// costs the endpoint next to nothing. Everything else only reads them.
+class TransferMetrics implements TransferMetricsMBean {
+
+// ***************************************************************************
+// Variables
+// ***************************************************************************
+
+    private final static int HISTOGRAM_BUCKETS = 24;   // Up to about 16 s.
+
+    private String _type;
+    private String _name;
+    private ObjectName _objectName;
+
+// For the stats line, which gives rates over the last interval.
+    private Timer _statsTimer;
+    private long _lastStatsTime;
+    private long _lastStatsDelivered;
+    private long _lastStatsTransferred;
+
+    private long _startTime;                // System.nanoTime()
+    private long _startCpuTime;             // Of the endpoint's thread, ns.
+    private volatile long _cpuTime;         // Once finished, -1 until then.
+
+    private volatile long _bytesDelivered;  // Payload acknowledged, or written.
+    private volatile long _bytesSent;
+    private volatile long _bytesReceived;
+    private volatile long _packetsSent;
+    private volatile long _packetsReceived;
+
+    private volatile long _retransmits;
+    private volatile long _duplicates;
+    private volatile long _corruptPackets;
+
+    private volatile int _windowOccupancy;
+    private volatile int _windowSize;
+
+    private volatile long _rttSum;          // us
+    private volatile long _rttCount;
+    private AtomicLongArray _rttHistogram;
+
+    private volatile long _writeLatencySum; // us
+    private volatile long _writeCount;
+    private AtomicLongArray _writeLatencyHistogram;
+
+    private RateLimiter _rateLimiter;       // Senders only.
+
+
+// ***************************************************************************
+// Functions
+// ***************************************************************************
+
+    // Constructor
+    public TransferMetrics(String type, String name) {
+
+        _type = type;
+        _name = name;
+        _objectName = null;
+        _statsTimer = null;
+
+        _startTime = System.nanoTime();
+        _startCpuTime = threadCpuTime();
+        _cpuTime = -1;
+
+        _rttHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        _writeLatencyHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        _rateLimiter = null;
+    }
+
+    // Publishes the metrics through the platform MBean server.
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("ass2:type=" + _type + ",name="
+                                                   + ObjectName.quote(_name));
+
+            server.registerMBean(new StandardMBean(this, TransferMetricsMBean.class), objectName);
+            _objectName = objectName;
+        } catch (JMException e) {
+            System.out.println(e.toString());
+        }
+    }
+
+    // Prints a line every intervalMillis, from a thread of its own.
+    public void startStats(long intervalMillis) {
+
+        _lastStatsTime = _startTime;
+        _lastStatsDelivered = 0;
+        _lastStatsTransferred = 0;
+
+        _statsTimer = new Timer(_type + " stats", true);
+        _statsTimer.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                printStats();
+            }
+        }, intervalMillis, intervalMillis);
+    }
+
+    // Called by the endpoint's thread once it is done, to stop the stats
+    // line and take the endpoint off the MBean server. Returns a summary.
+    public String finish() {
+
+        long cpuTime = threadCpuTime();
+        _cpuTime = (cpuTime < 0) ? 0 : cpuTime - _startCpuTime;
+
+        if (_statsTimer != null)
+            _statsTimer.cancel();
+        _statsTimer = null;
+
+        try {
+            if (_objectName != null)
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+        } catch (JMException e) {
+            System.out.println(e.toString());
+        }
+        _objectName = null;
+
+        return toString() + String.format(", CPU %.2f s", _cpuTime / 1e9);
+    }
+
+    // "<name> 12.034 s: 45.2 Mbit/s goodput, 50.3 Mbit/s raw, ..." since the
+    // start, leaving out what the endpoint does not measure.
+    public String toString() {
+        return format(getGoodput(), getThroughput());
+    }
+
+    private void printStats() {
+
+        long now = System.nanoTime();
+        long delivered = _bytesDelivered;
+        long transferred = Math.max(_bytesSent, _bytesReceived);
+        double seconds = Math.max(1, now - _lastStatsTime) / 1e9;
+
+        System.out.println(format((long)((delivered - _lastStatsDelivered) * 8 / seconds),
+                                  (long)((transferred - _lastStatsTransferred) * 8 / seconds)));
+
+        _lastStatsTime = now;
+        _lastStatsDelivered = delivered;
+        _lastStatsTransferred = transferred;
+    }
+
+    private String format(long goodput, long throughput) {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("%s %.3f s: %.1f Mbit/s goodput, %.1f Mbit/s raw, ",
+                                _name, getElapsedTime() / 1e3, goodput / 1e6, throughput / 1e6));
+        sb.append(_retransmits).append(" retransmits, ");
+        sb.append(_duplicates).append(" duplicates, ");
+        sb.append(_corruptPackets).append(" corrupt, ");
+        sb.append("window ").append(_windowOccupancy).append('/').append(_windowSize);
+
+        if (_rttCount > 0)
+            sb.append(String.format(", RTT %.2f ms (p99 < %.2f ms)", getMeanRtt() / 1e3,
+                                    percentile(_rttHistogram, _rttCount, 0.99) / 1e3));
+
+        if (_writeCount > 0)
+            sb.append(String.format(", write %d us (p99 < %d us)", getMeanWriteLatency(),
+                                    percentile(_writeLatencyHistogram, _writeCount, 0.99)));
+
+        return sb.toString();
+    }
+
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        _rateLimiter = rateLimiter;
+    }
+
+    public void addDelivered(long bytes) {
+        _bytesDelivered += bytes;
+    }
+
+    public void addSent(int bytes, boolean retransmit) {
+        _bytesSent += bytes;
+        _packetsSent++;
+
+        if (retransmit)
+            _retransmits++;
+    }
+
+    public void addReceived(int bytes) {
+        _bytesReceived += bytes;
+        _packetsReceived++;
+    }
+
+    public void addDuplicate() {
+        _duplicates++;
+    }
+
+    public void addCorrupt() {
+        _corruptPackets++;
+    }
+
+    public void setWindow(int occupancy, int size) {
+        _windowOccupancy = occupancy;
+        _windowSize = size;
+    }
+
+    public void addRtt(long rttNanos) {
+        long micros = rttNanos / 1000;
+
+        _rttSum += micros;
+        _rttCount++;
+        _rttHistogram.incrementAndGet(bucket(micros));
+    }
+
+    public void addWriteLatency(long latencyNanos) {
+        long micros = latencyNanos / 1000;
+
+        _writeLatencySum += micros;
+        _writeCount++;
+        _writeLatencyHistogram.incrementAndGet(bucket(micros));
+    }
+
+    public long getElapsedTime() {
+        return (System.nanoTime() - _startTime) / 1000000;
+    }
+
+    public long getBytesDelivered() {
+        return _bytesDelivered;
+    }
+
+    public long getBytesSent() {
+        return _bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return _bytesReceived;
+    }
+
+    public long getPacketsSent() {
+        return _packetsSent;
+    }
+
+    public long getPacketsReceived() {
+        return _packetsReceived;
+    }
+
+    public long getGoodput() {
+        return rate(_bytesDelivered);
+    }
+
+    // Of whichever way the endpoint's data goes.
+    public long getThroughput() {
+        return rate(Math.max(_bytesSent, _bytesReceived));
+    }
+
+    public long getRetransmits() {
+        return _retransmits;
+    }
+
+    public long getDuplicates() {
+        return _duplicates;
+    }
+
+    public long getCorruptPackets() {
+        return _corruptPackets;
+    }
+
+    public int getWindowOccupancy() {
+        return _windowOccupancy;
+    }
+
+    public int getWindowSize() {
+        return _windowSize;
+    }
+
+    public long getMeanRtt() {
+        long count = _rttCount;
+
+        return (count > 0) ? _rttSum / count : 0;
+    }
+
+    public long[] getRttHistogram() {
+        return toArray(_rttHistogram);
+    }
+
+    public long getMeanWriteLatency() {
+        long count = _writeCount;
+
+        return (count > 0) ? _writeLatencySum / count : 0;
+    }
+
+    public long[] getWriteLatencyHistogram() {
+        return toArray(_writeLatencyHistogram);
+    }
+
+    public long getRate() {
+        return (_rateLimiter != null) ? _rateLimiter.getRate() : 0;
+    }
+
+    public void setRate(long bitsPerSecond) {
+        if (_rateLimiter != null)
+            _rateLimiter.setRate(bitsPerSecond);
+    }
+
+    // Bits per second since the start.
+    private long rate(long bytes) {
+        long elapsed = System.nanoTime() - _startTime;
+
+        return (elapsed > 0) ? (long)(bytes * 8 * 1e9 / elapsed) : 0;
+    }
+
+    private static int bucket(long micros) {
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(1, micros));
+
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    // Upper bound of the bucket the fraction of samples falls in, us.
+    private static long percentile(AtomicLongArray histogram, long count, double fraction) {
+
+        long target = (long)Math.ceil(count * fraction);
+        long seen = 0;
+
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            seen += histogram.get(i);
+
+            if (seen >= target)
+                return 2L << i;
+        }
+
+        return 2L << (HISTOGRAM_BUCKETS - 1);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] counts = new long[histogram.length()];
+
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = histogram.get(i);
+
+        return counts;
+    }
+
+    // -1 if the JVM cannot tell.
+    private static long threadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+}
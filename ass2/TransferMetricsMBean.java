@@ -0,0 +1,36 @@
+// Author: Qwek Siew Weng Melvyn (A0111821X)
+
+// What an endpoint publishes through JMX, see TransferMetrics. Rates are in
+// bits per second, and times in microseconds. Histogram bucket 0 counts
+// samples under 2 us, and bucket i > 0 those from 2^i up to 2^(i+1) us.
+public interface TransferMetricsMBean {
+
+    public long getElapsedTime();           // Milliseconds since the start.
+
+    public long getBytesDelivered();
+    public long getBytesSent();
+    public long getBytesReceived();
+    public long getPacketsSent();
+    public long getPacketsReceived();
+
+    public long getGoodput();
+    public long getThroughput();
+
+    public long getRetransmits();
+    public long getDuplicates();
+    public long getCorruptPackets();
+
+    public int getWindowOccupancy();
+    public int getWindowSize();
+
+    public long getMeanRtt();
+    public long[] getRttHistogram();
+
+    public long getMeanWriteLatency();
+    public long[] getWriteLatencyHistogram();
+
+    // The sender's rate limit, 0 for unlimited. It may be changed while the
+    // transfer is running. Receivers have none, and ignore it.
+    public long getRate();
+    public void setRate(long bitsPerSecond);
+}
@@ -3,15 +3,21 @@
 // [zlf]: Place this program in the same directory as your sender
 // and receiver programs. Command to compile all three: javac *.java
 
+import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class UnreliNET {
     
     static int buf_size = 1500;
-    int returnPort_sk1;
-    private DatagramSocket sk1, sk2;
+    static int socket_buf_size = 4 * 1024 * 1024;
+    static long flow_timeout_ms = 60000;   // a sender quiet for this long is forgotten
+    static long stats_interval_ms = 1000;
+    private DatagramSocket sk1;
     int port_sk1, port_sk2;
+    InetAddress rcv_addr;
     
     // corruption/loss rate
     static float data_loss_pct;
@@ -19,24 +25,496 @@ public class UnreliNET {
     static float data_corrupt_pct;
     static float ack_corrupt_pct;
     
+    // path emulation, applied to each direction on its own
+    static long delay_ns;           // one-way delay
+    static long jitter_ns;          // delay varies uniformly by up to this much either way
+    static long bandwidth_bps;      // bottleneck bandwidth, 0 for none
+    static int queue_limit = 100;   // packets waiting for the bottleneck
+    static float reorder_pct;
+    
+    // determinism: with a seed, every decision is drawn from generators
+    // seeded by it; a replay takes the loss and corruption decisions from
+    // a trace instead. has_seed is false for unseeded generators.
+    static boolean has_seed;
+    static long seed;
+    static String trace_file, replay_file;
+    
+    LinkEmulator data_link, ack_link;
+    Tracer tracer;
+    Replay replay;
+    
+    // flow table: each sender, by its port, gets a socket of its own towards
+    // the receiver, so that the receiver can tell senders apart and their
+    // ACKs/NAKs find their way back. Only the data thread changes it.
+    Flow[] flows = new Flow[65536];
+    ArrayList<Flow> flow_list = new ArrayList<Flow>();
+    volatile int flow_count;
+    int flows_opened;       // flows are numbered in the order they open
+    
+    // counters, printed every stats_interval_ms when they have changed
+    // rather than a line per packet
+    Counters data_counters = new Counters("Packet");
+    Counters ack_counters = new Counters("ACK/NAK");
+    
+    public class Flow {
+        
+        DatagramSocket sk;              // towards the receiver
+        InetAddress src_addr;
+        int src_port;
+        int index;
+        Decider data_decider, ack_decider;
+        volatile long last_seen_ms;
+        volatile boolean closed;
+        
+        public Flow(InetAddress src_addr, int src_port, int index) throws SocketException {
+            this.src_addr = src_addr;
+            this.src_port = src_port;
+            this.index = index;
+            data_decider = newDecider(index, DATA);
+            ack_decider = newDecider(index, ACK);
+            sk = new DatagramSocket();
+            sk.setReceiveBufferSize(socket_buf_size);
+            sk.setSendBufferSize(socket_buf_size);
+            last_seen_ms = System.currentTimeMillis();
+        }
+        
+        void close() {
+            closed = true;
+            sk.close();
+        }
+    }
+    
+    public static class Counters {
+        
+        String name;
+        AtomicLong forwarded = new AtomicLong();
+        AtomicLong dropped = new AtomicLong();
+        AtomicLong corrupted = new AtomicLong();
+        AtomicLong queue_dropped = new AtomicLong();
+        AtomicLong reordered = new AtomicLong();
+        
+        public Counters(String name) {
+            this.name = name;
+        }
+        
+        long total() {
+            return forwarded.get() + dropped.get() + queue_dropped.get();
+        }
+        
+        public String toString() {
+            return name + ": " + forwarded.get() + " forwarded, " + dropped.get() + " dropped, "
+                + corrupted.get() + " corrupted, " + queue_dropped.get() + " dropped by full queue, "
+                + reordered.get() + " reordered";
+        }
+    }
+    
+    // Delays packets on their way to dst the way a WAN path would, and sends
+    // them from a thread of its own once they are due. The bottleneck sends
+    // one packet at a time at its bandwidth, from a drop-tail queue of at most
+    // queue_limit packets. Then comes the delay, give or take the jitter.
+    // Jitter never lets a packet overtake the one before it, it only bunches
+    // them up; only a reordered packet is held back a further delay (1 ms if
+    // there is none), so that the packets behind it overtake it. Packets are
+    // copied into buffers that are used over and over again.
+    public class LinkEmulator extends Thread {
+        
+        private Counters counters;
+        private int direction;
+        private Random rnd;
+        private DelayQueue<DelayedPacket> in_flight = new DelayQueue<DelayedPacket>();
+        private ArrayBlockingQueue<DelayedPacket> free = new ArrayBlockingQueue<DelayedPacket>(4096);
+        private long[] bottleneck = new long[queue_limit];     // departure times, a ring
+        private int bottleneck_head, bottleneck_count;
+        private long bottleneck_free_ns;
+        private long last_arrive_ns;        // of the last packet not reordered
+        private long next_order;            // breaks ties between packets due together
+        
+        public LinkEmulator(Counters counters, int direction) {
+            this.counters = counters;
+            this.direction = direction;
+            rnd = has_seed ? new Random(seed * 31 + direction) : new Random();
+            setDaemon(true);
+        }
+        
+        // called by the threads that received the packet, which may reuse data
+        public synchronized void send(Flow flow, DatagramSocket sk, byte[] data, int length,
+                                      InetAddress dst_addr, int dst_port) {
+            long now = System.nanoTime();
+            long depart_ns = now;
+            
+            if (bandwidth_bps > 0) {
+                // forget packets that have left the bottleneck
+                while (bottleneck_count > 0 && bottleneck[bottleneck_head] <= now) {
+                    bottleneck_head = (bottleneck_head + 1) % queue_limit;
+                    bottleneck_count--;
+                }
+                
+                if (bottleneck_count >= queue_limit) {
+                    counters.queue_dropped.incrementAndGet();
+                    trace(flow, direction, QUEUE_DROPPED, length);
+                    return;
+                }
+                
+                bottleneck_free_ns = Math.max(bottleneck_free_ns, now)
+                    + length * 8L * 1000000000L / bandwidth_bps;
+                depart_ns = bottleneck_free_ns;
+                bottleneck[(bottleneck_head + bottleneck_count++) % queue_limit] = depart_ns;
+            }
+            
+            long arrive_ns = depart_ns + delay_ns;
+            if (jitter_ns > 0)
+                arrive_ns = Math.max(depart_ns,
+                    arrive_ns + (long) ((rnd.nextDouble() * 2 - 1) * jitter_ns));
+            
+            if (reorder_pct > 0 && rnd.nextFloat() <= reorder_pct) {
+                arrive_ns = Math.max(arrive_ns, last_arrive_ns) + Math.max(delay_ns, 1000000L);
+                counters.reordered.incrementAndGet();
+                trace(flow, direction, REORDERED, length);
+            } else {
+                arrive_ns = Math.max(arrive_ns, last_arrive_ns);
+                last_arrive_ns = arrive_ns;
+            }
+            
+            DelayedPacket pkt = free.poll();
+            if (pkt == null)
+                pkt = new DelayedPacket();
+            
+            pkt.fill(sk, data, length, dst_addr, dst_port, arrive_ns, next_order++);
+            in_flight.put(pkt);
+            counters.forwarded.incrementAndGet();
+        }
+        
+        public void run() {
+            try {
+                while (true) {
+                    DelayedPacket pkt = in_flight.take();
+                    try {
+                        pkt.sk.send(pkt.out_pkt);
+                    } catch (SocketException e) {
+                        // the flow was forgotten while its packet was on the way
+                    }
+                    pkt.sk = null;
+                    free.offer(pkt);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+    
+    static class DelayedPacket implements Delayed {
+        
+        DatagramSocket sk;
+        byte[] data = new byte[buf_size];
+        DatagramPacket out_pkt = new DatagramPacket(data, data.length);
+        long due_ns;        // System.nanoTime()
+        long order;         // when it was sent, among packets due at the same time
+        
+        void fill(DatagramSocket sk, byte[] in_data, int length,
+                  InetAddress dst_addr, int dst_port, long due_ns, long order) {
+            this.sk = sk;
+            System.arraycopy(in_data, 0, data, 0, length);
+            out_pkt.setData(data, 0, length);
+            out_pkt.setAddress(dst_addr);
+            out_pkt.setPort(dst_port);
+            this.due_ns = due_ns;
+            this.order = order;
+        }
+        
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due_ns - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        
+        public int compareTo(Delayed other) {
+            DelayedPacket pkt = (DelayedPacket) other;
+            int c = Long.compare(due_ns, pkt.due_ns);
+            return (c != 0) ? c : Long.compare(order, pkt.order);
+        }
+    }
+    
+    // events, as decided for each packet and as written to the trace
+    static final int FORWARDED = 0;
+    static final int DROPPED = 1;
+    static final int CORRUPTED = 2;         // and forwarded
+    static final int QUEUE_DROPPED = 3;     // by the emulator, after FORWARDED or CORRUPTED
+    static final int REORDERED = 4;         // likewise
+    
+    // directions
+    static final int DATA = 0;
+    static final int ACK = 1;
+    
+    // Decides, packet by packet, what becomes of one direction of a flow.
+    // Seeded deciders make the same decisions for the same flow every time;
+    // replaying ones make the recorded decisions, and forward everything
+    // once the recording runs out.
+    public static class Decider {
+        
+        private Random rnd, rnd_byte;
+        private byte[] decisions;       // when replaying
+        private int decision_count, next;
+        
+        public Decider(Random rnd, Random rnd_byte, byte[] decisions, int decision_count) {
+            this.rnd = rnd;
+            this.rnd_byte = rnd_byte;
+            this.decisions = decisions;
+            this.decision_count = decision_count;
+        }
+        
+        int decide(float loss_pct, float corrupt_pct) {
+            if (decisions != null)
+                return (next < decision_count) ? decisions[next++] : FORWARDED;
+            
+            // decide if to drop the packet or not
+            if (rnd.nextFloat() <= loss_pct)
+                return DROPPED;
+            
+            // decide if to corrupt the packet or not
+            if (rnd.nextFloat() <= corrupt_pct)
+                return CORRUPTED;
+            
+            return FORWARDED;
+        }
+        
+        void corrupt(byte[] data, int length) {
+            for (int i = 0; i < length; ++i)
+                if (rnd_byte.nextFloat() <= 0.3)  //decide if to corrupt a byte
+                    data[i] = (byte) ((data[i] + 1) % 10);
+        }
+    }
+    
+    Decider newDecider(int flow_index, int direction) {
+        long flow_seed = seed * 31 + 2 + flow_index * 2 + direction;
+        Random rnd = has_seed ? new Random(flow_seed) : new Random();
+        Random rnd_byte = has_seed ? new Random(~flow_seed) : new Random();
+        
+        if (replay != null)
+            return replay.decider(flow_index, direction, rnd, rnd_byte);
+        
+        return new Decider(rnd, rnd_byte, null, 0);
+    }
+    
+    // Trace file: a header of the magic number, the format version, whether
+    // there is a seed, the seed and the start time (ms since the epoch),
+    // then one record per event of
+    //   time (long, ns since the start), flow (int), direction (byte),
+    //   event (byte), length (short)
+    // Records are kept in a ring and written by a thread of their own, so
+    // forwarding only waits for the disk if the ring fills up. A trace
+    // that is missing records could not be replayed, so none are dropped.
+    static final int TRACE_MAGIC = 0x554e4554;     // "UNET"
+    static final int TRACE_VERSION = 1;
+    
+    public static class Tracer extends Thread {
+        
+        private static final int CAPACITY = 1 << 16;
+        
+        private DataOutputStream out;
+        private long start_ns = System.nanoTime();
+        private long[] times = new long[CAPACITY];
+        private int[] flow_indices = new int[CAPACITY];
+        private byte[] directions = new byte[CAPACITY];
+        private byte[] events = new byte[CAPACITY];
+        private short[] lengths = new short[CAPACITY];
+        private int head, count;
+        AtomicLong stalls = new AtomicLong();
+        
+        public Tracer(String file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            out.writeInt(TRACE_MAGIC);
+            out.writeInt(TRACE_VERSION);
+            out.writeBoolean(has_seed);
+            out.writeLong(seed);
+            out.writeLong(System.currentTimeMillis());
+            setDaemon(true);
+        }
+        
+        // waits for the writer while the ring is full
+        public synchronized void record(int flow_index, int direction, int event, int length) {
+            if (count == CAPACITY) {
+                stalls.incrementAndGet();
+                notifyAll();
+                
+                while (count == CAPACITY) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            
+            int i = (head + count++) % CAPACITY;
+            times[i] = System.nanoTime() - start_ns;
+            flow_indices[i] = flow_index;
+            directions[i] = (byte) direction;
+            events[i] = (byte) event;
+            lengths[i] = (short) length;
+        }
+        
+        // writes out what has been recorded so far
+        public void flush() throws IOException {
+            synchronized (out) {
+                while (true) {
+                    long time;
+                    int flow_index, direction, event, length;
+                    
+                    synchronized (this) {
+                        if (count == CAPACITY)
+                            notifyAll();
+                        if (count == 0)
+                            break;
+                        time = times[head];
+                        flow_index = flow_indices[head];
+                        direction = directions[head];
+                        event = events[head];
+                        length = lengths[head];
+                        head = (head + 1) % CAPACITY;
+                        count--;
+                    }
+                    
+                    out.writeLong(time);
+                    out.writeInt(flow_index);
+                    out.writeByte(direction);
+                    out.writeByte(event);
+                    out.writeShort(length);
+                }
+                out.flush();
+            }
+        }
+        
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        if (count < CAPACITY)
+                            wait(10);
+                    }
+                    flush();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+    
+    void trace(Flow flow, int direction, int event, int length) {
+        if (tracer != null)
+            tracer.record(flow.index, direction, event, length);
+    }
+    
+    // The loss and corruption decisions of a trace, for each direction of
+    // each flow in the order the flows opened. The trace's seed is used
+    // unless another is given, for the corrupted bytes and the emulator.
+    public static class Replay {
+        
+        HashMap<Long, ByteArrayOutputStream> decisions = new HashMap<Long, ByteArrayOutputStream>();
+        long packet_count;
+        
+        public Replay(String file) throws IOException {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 65536));
+            
+            try {
+                if (in.readInt() != TRACE_MAGIC || in.readInt() != TRACE_VERSION)
+                    throw new IOException(file + " is not a trace");
+                
+                boolean trace_has_seed = in.readBoolean();
+                long trace_seed = in.readLong();
+                in.readLong();
+                
+                if (!has_seed && trace_has_seed) {
+                    has_seed = true;
+                    seed = trace_seed;
+                }
+                
+                while (true) {
+                    in.readLong();
+                    int flow_index = in.readInt();
+                    int direction = in.readByte();
+                    int event = in.readByte();
+                    in.readShort();
+                    
+                    if (event != FORWARDED && event != DROPPED && event != CORRUPTED)
+                        continue;
+                    
+                    Long key = ((long) flow_index << 1) | direction;
+                    ByteArrayOutputStream bytes = decisions.get(key);
+                    if (bytes == null) {
+                        bytes = new ByteArrayOutputStream();
+                        decisions.put(key, bytes);
+                    }
+                    bytes.write(event);
+                    packet_count++;
+                }
+            } catch (EOFException e) {
+                // the end of the trace
+            } finally {
+                in.close();
+            }
+        }
+        
+        Decider decider(int flow_index, int direction, Random rnd, Random rnd_byte) {
+            ByteArrayOutputStream bytes = decisions.get(((long) flow_index << 1) | direction);
+            byte[] recorded = (bytes != null) ? bytes.toByteArray() : new byte[0];
+            
+            return new Decider(rnd, rnd_byte, recorded, recorded.length);
+        }
+    }
+    
+    static boolean isEmulating() {
+        return delay_ns > 0 || jitter_ns > 0 || bandwidth_bps > 0 || reorder_pct > 0;
+    }
+    
+    // finds the sender's flow, opening one for a new sender
+    Flow flowFor(DatagramPacket in_pkt) throws SocketException {
+        Flow flow = flows[in_pkt.getPort()];
+        
+        if (flow == null) {
+            expireFlows();
+            flow = new Flow(in_pkt.getAddress(), in_pkt.getPort(), flows_opened++);
+            flows[flow.src_port] = flow;
+            flow_list.add(flow);
+            flow_count = flow_list.size();
+            new UnreliThreadProcessAck(flow).start();
+        }
+        
+        return flow;
+    }
+    
+    // closes the sockets of senders that have gone quiet; the data thread
+    // does this when a new sender turns up, so that ports can be reused
+    void expireFlows() {
+        long now = System.currentTimeMillis();
+        Iterator<Flow> it = flow_list.iterator();
+        
+        while (it.hasNext()) {
+            Flow flow = it.next();
+            if (now - flow.last_seen_ms > flow_timeout_ms) {
+                flows[flow.src_port] = null;
+                flow.close();
+                it.remove();
+            }
+        }
+        flow_count = flow_list.size();
+    }
+    
     // define thread which is used to handle one-direction of communication
     public class UnreliThreadProcessData extends Thread {
         
-        private Random rnd = new Random();
-        private Random rnd_byte = new Random();
-        int corruptionCounter = 0;
-        int dropCounter = 0;
-        
         public void run() {
             try {
                 byte[] in_data = new byte[buf_size];
-                InetAddress dst_addr = InetAddress.getByName("127.0.0.1");
                 DatagramPacket in_pkt = new DatagramPacket(in_data, in_data.length);
+                DatagramPacket out_pkt = new DatagramPacket(in_data, in_data.length, rcv_addr, port_sk2);
                 
                 while (true) {
                     // read data from the incoming socket
                     sk1.receive(in_pkt);
-                    returnPort_sk1 = in_pkt.getPort();
+                    Flow flow = flowFor(in_pkt);
+                    flow.last_seen_ms = System.currentTimeMillis();
                     
                     // check the length of the packet
                     if (in_pkt.getLength() > 1000) {
@@ -44,28 +522,30 @@ public class UnreliNET {
                         System.exit(-1);
                     }
                     
-                    // decide if to drop the packet or not
-                    if (rnd.nextFloat() <= data_loss_pct) {
-                        dropCounter++;
-                        System.out.println(dropCounter + " Packet dropped");
+                    // decide if to drop or corrupt the packet or not
+                    int decision = flow.data_decider.decide(data_loss_pct, data_corrupt_pct);
+                    trace(flow, DATA, decision, in_pkt.getLength());
+                    
+                    if (decision == DROPPED) {
+                        data_counters.dropped.incrementAndGet();
                         continue;
                     }
                     
-                    // decide if to corrupt the packet or not
-                    if (rnd.nextFloat() <= data_corrupt_pct) {
-                        for (int i = 0; i < in_pkt.getLength(); ++i)
-                            if (rnd_byte.nextFloat() <= 0.3)  //decide if to corrupt a byte
-                                in_data[i] = (byte) ((in_data[i] + 1) % 10);
-                        corruptionCounter++;
-                        System.out.println(corruptionCounter + " Packet corrupted");
+                    if (decision == CORRUPTED) {
+                        flow.data_decider.corrupt(in_data, in_pkt.getLength());
+                        data_counters.corrupted.incrementAndGet();
                     }
                     
                     // write data to the outgoing socket
-                    DatagramPacket out_pkt =
-                        new DatagramPacket(in_data, in_pkt.getLength(), dst_addr, port_sk2);
-                    sk2.send(out_pkt);
+                    if (data_link != null) {
+                        data_link.send(flow, flow.sk, in_data, in_pkt.getLength(), rcv_addr, port_sk2);
+                        continue;
+                    }
+                    out_pkt.setData(in_data, 0, in_pkt.getLength());
+                    flow.sk.send(out_pkt);
+                    data_counters.forwarded.incrementAndGet();
                 }
-                
+            
             } catch (Exception e) {
                 e.printStackTrace();
                 System.exit(-1);
@@ -73,22 +553,27 @@ public class UnreliNET {
         }
     }
     
+    // one for each flow, until the flow is forgotten
     public class UnreliThreadProcessAck extends Thread {
         
-        private Random rnd = new Random();
-        private Random rnd_byte = new Random();
-        int ackcorruptionCounter = 0;
-        int ackdropCounter = 0;
+        private Flow flow;
+        
+        public UnreliThreadProcessAck(Flow flow) {
+            this.flow = flow;
+            setDaemon(true);
+        }
         
         public void run() {
             try {
                 byte[] in_data = new byte[buf_size];
-                InetAddress dst_addr = InetAddress.getByName("127.0.0.1");
                 DatagramPacket in_pkt = new DatagramPacket(in_data, in_data.length);
+                DatagramPacket out_pkt =
+                    new DatagramPacket(in_data, in_data.length, flow.src_addr, flow.src_port);
                 
                 while (true) {
                     // read data from the incoming socket
-                    sk2.receive(in_pkt);
+                    flow.sk.receive(in_pkt);
+                    flow.last_seen_ms = System.currentTimeMillis();
                     
                     // check the length of the packet
                     if (in_pkt.getLength() > 1000) {
@@ -96,28 +581,35 @@ public class UnreliNET {
                         System.exit(-1);
                     }
                     
-                    // decide if to drop the packet or not
-                    if (rnd.nextFloat() <= ack_loss_pct) {
-                        ackdropCounter++;
-                        System.out.println(ackdropCounter + " ACK/NAK dropped");
+                    // decide if to drop or corrupt the packet or not
+                    int decision = flow.ack_decider.decide(ack_loss_pct, ack_corrupt_pct);
+                    trace(flow, ACK, decision, in_pkt.getLength());
+                    
+                    if (decision == DROPPED) {
+                        ack_counters.dropped.incrementAndGet();
                         continue;
                     }
                     
-                    // decide if to corrupt the packet or not
-                    if (rnd.nextFloat() <= ack_corrupt_pct) {
-                        for (int i = 0; i < in_pkt.getLength(); ++i)
-                            if (rnd_byte.nextFloat() <= 0.3) //decide if to corrupt a byte
-                                in_data[i] = (byte) ((in_data[i] + 1) % 10);
-                        ackcorruptionCounter++;
-                        System.out.println(ackcorruptionCounter + " ACK/NAK corrupted");
+                    if (decision == CORRUPTED) {
+                        flow.ack_decider.corrupt(in_data, in_pkt.getLength());
+                        ack_counters.corrupted.incrementAndGet();
                     }
                     
                     // write data to the outgoing socket
-                    DatagramPacket out_pkt =
-                        new DatagramPacket(in_data, in_pkt.getLength(), dst_addr, returnPort_sk1);
+                    if (ack_link != null) {
+                        ack_link.send(flow, sk1, in_data, in_pkt.getLength(), flow.src_addr, flow.src_port);
+                        continue;
+                    }
+                    out_pkt.setData(in_data, 0, in_pkt.getLength());
                     sk1.send(out_pkt);
+                    ack_counters.forwarded.incrementAndGet();
+                }
+            
+            } catch (SocketException e) {
+                if (!flow.closed) {
+                    e.printStackTrace();
+                    System.exit(-1);
                 }
-                
             } catch (Exception e) {
                 e.printStackTrace();
                 System.exit(-1);
@@ -125,18 +617,63 @@ public class UnreliNET {
         }
     }
     
+    String stats() {
+        String line = data_counters + "; " + ack_counters + "; " + flow_count + " flows";
+        
+        if (tracer != null && tracer.stalls.get() > 0)
+            line += "; " + tracer.stalls.get() + " waits for the trace";
+        
+        return line;
+    }
+    
+    // prints the counters every stats_interval_ms if anything has happened,
+    // and once more on the way out
+    void startStats() {
+        TimerTask task = new TimerTask() {
+            long last_total = 0;
+            
+            public void run() {
+                long total = data_counters.total() + ack_counters.total();
+                if (total != last_total)
+                    System.out.println(stats());
+                last_total = total;
+            }
+        };
+        
+        new Timer("UnreliNET stats", true).scheduleAtFixedRate(task, stats_interval_ms, stats_interval_ms);
+        
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                System.out.println(stats());
+                
+                try {
+                    if (tracer != null)
+                        tracer.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+    
     public UnreliNET(float data_corrupt_rate, float ack_corrupt_rate,
                      float data_loss_rate, float ack_loss_rate, int unreliNetPort, int rcvPort) {
         
         System.out.println("unreliNetPort = " + unreliNetPort
-                               + "\nrcvPort = " + rcvPort 
+                               + "\nrcvPort = " + rcvPort
                                + "\ndata corruption rate = " + data_corrupt_rate
                                + "\nack/nak corruption rate = " + ack_corrupt_rate
                                + "\ndata loss rate = " + data_loss_rate
                                + "\nack/nak loss rate = " + ack_loss_rate);
+        if (isEmulating())
+            System.out.println("delay = " + delay_ns / 1e6 + " ms"
+                                   + "\njitter = " + jitter_ns / 1e6 + " ms"
+                                   + "\nbandwidth = " + bandwidth_bps / 1e6 + " Mbit/s"
+                                   + "\nqueue = " + queue_limit + " packets"
+                                   + "\nreordering rate = " + reorder_pct);
         
         try {
-            // Create socket sk1 and sk2
+            // Create socket sk1; those towards the receiver come with each flow
             
             data_corrupt_pct = data_corrupt_rate;
             ack_corrupt_pct = ack_corrupt_rate;
@@ -144,18 +681,38 @@ public class UnreliNET {
             ack_loss_pct = ack_loss_rate;
             
             sk1 = new DatagramSocket(unreliNetPort);
-            sk2 = new DatagramSocket();
+            sk1.setReceiveBufferSize(socket_buf_size);
+            sk1.setSendBufferSize(socket_buf_size);
             
             port_sk1 = unreliNetPort;
             port_sk2 = rcvPort;
+            rcv_addr = InetAddress.getByName("127.0.0.1");
+            
+            if (replay_file != null) {
+                replay = new Replay(replay_file);
+                System.out.println("replaying " + replay.packet_count + " decisions from " + replay_file);
+            }
+            if (has_seed)
+                System.out.println("seed = " + seed);
             
-            // create threads to process sender's incoming data
+            if (trace_file != null) {
+                tracer = new Tracer(trace_file);
+                tracer.start();
+            }
+            
+            if (isEmulating()) {
+                data_link = new LinkEmulator(data_counters, DATA);
+                data_link.start();
+                ack_link = new LinkEmulator(ack_counters, ACK);
+                ack_link.start();
+            }
+            
+            startStats();
+            
+            // create threads to process sender's incoming data; those for the
+            // receiver's incoming data start with each flow
             UnreliThreadProcessData th1 = new UnreliThreadProcessData();
             th1.start();
-            
-            // create threads to process receiver's incoming data
-            UnreliThreadProcessAck th2 = new UnreliThreadProcessAck();
-            th2.start();
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(-1);
@@ -164,14 +721,46 @@ public class UnreliNET {
     
     public static void main(String[] args) {
         // parse parameters
-        if (args.length != 6) {
-            System.err.println("Usage: java UnreliNET <P_DATA_CORRUPT> <P_ACK_CORRUPT> " +
-                               "<P_DATA_LOSS> <P_ACK_LOSS> <unreliNetPort> <rcvPort>");
-            System.exit(-1);
+        if (args.length < 6 || args.length % 2 != 0) {
+            printUsage();
         } else {
+            // optional path emulation, in each direction
+            for (int i = 6; i < args.length; i += 2) {
+                if (args[i].equals("-delay"))
+                    delay_ns = (long) (Double.parseDouble(args[i + 1]) * 1000000);
+                else if (args[i].equals("-jitter"))
+                    jitter_ns = (long) (Double.parseDouble(args[i + 1]) * 1000000);
+                else if (args[i].equals("-bandwidth"))
+                    bandwidth_bps = (long) (Double.parseDouble(args[i + 1]) * 1000000);
+                else if (args[i].equals("-queue"))
+                    queue_limit = Integer.parseInt(args[i + 1]);
+                else if (args[i].equals("-reorder"))
+                    reorder_pct = Float.parseFloat(args[i + 1]);
+                else if (args[i].equals("-seed")) {
+                    has_seed = true;
+                    seed = Long.parseLong(args[i + 1]);
+                }
+                else if (args[i].equals("-trace"))
+                    trace_file = args[i + 1];
+                else if (args[i].equals("-replay"))
+                    replay_file = args[i + 1];
+                else
+                    printUsage();
+            }
+            if (queue_limit < 1)
+                printUsage();
             new UnreliNET(Float.parseFloat(args[0]), Float.parseFloat(args[1]),
                           Float.parseFloat(args[2]), Float.parseFloat(args[3]),
                           Integer.parseInt(args[4]), Integer.parseInt(args[5]) );
         }
     }
+    
+    static void printUsage() {
+        System.err.println("Usage: java UnreliNET <P_DATA_CORRUPT> <P_ACK_CORRUPT> " +
+                           "<P_DATA_LOSS> <P_ACK_LOSS> <unreliNetPort> <rcvPort> " +
+                           "[-delay <ms>] [-jitter <ms>] [-bandwidth <Mbit/s>] " +
+                           "[-queue <packets>] [-reorder <P_REORDER>] [-seed <n>] " +
+                           "[-trace <file>] [-replay <file>]");
+        System.exit(-1);
+    }
 }